@@ -0,0 +1,102 @@
+package com.stb.blog.jmh;
+
+import com.stb.blog.JWT.JwtTokenGenerator;
+import com.stb.blog.JWT.JwtTokenReader;
+import com.stb.blog.exceptions.JwtTokenException;
+import com.stb.blog.models.Role;
+import com.stb.blog.models.User;
+import com.stb.blog.services.JwtService;
+import com.stb.blog.services.UserService;
+import io.jsonwebtoken.Jwts;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the per-request auth path: signing, parsing and verifying tokens.
+ * User lookups are stubbed so only crypto, parsing and key handling are measured.
+ * Run with: mvn -Pjmh test-compile exec:exec (the gc profiler is on by default for allocation rates)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JwtBenchmarks {
+    private static final String SECRET = Base64.getEncoder().encodeToString("benchmark-access-secret-0123456789abcdef".getBytes());
+    private static final String REFRESH_SECRET = Base64.getEncoder().encodeToString("benchmark-refresh-secret-0123456789abcdef".getBytes());
+
+    private JwtTokenGenerator generator;
+    private JwtTokenReader reader;
+    private JwtService jwtService;
+    private User user;
+    private String accessToken;
+
+    @Setup
+    public void setup(){
+        user = new User();
+        user.setUserId("benchmark");
+        user.setUsername("benchmark");
+        user.setPassword("not-used");
+        user.setRoles(new HashSet<>(List.of(new Role("ROLE_USER"), new Role("ROLE_WRITER"))));
+
+        // No Mongo, every lookup answers with the same user
+        UserService userService = new UserService(){
+            @Override
+            public User findUserByUsername(String username){
+                return user;
+            }
+        };
+
+        generator = new JwtTokenGenerator();
+        ReflectionTestUtils.setField(generator, "secret", SECRET);
+        ReflectionTestUtils.setField(generator, "refreshSecret", REFRESH_SECRET);
+        generator.init();
+
+        reader = new JwtTokenReader();
+        ReflectionTestUtils.setField(reader, "secret", SECRET);
+        ReflectionTestUtils.setField(reader, "refreshSecret", REFRESH_SECRET);
+        ReflectionTestUtils.setField(reader, "userService", userService);
+        reader.init();
+
+        jwtService = new JwtService();
+        ReflectionTestUtils.setField(jwtService, "jwtTokenGenerator", generator);
+        ReflectionTestUtils.setField(jwtService, "jwtTokenReader", reader);
+
+        accessToken = generator.createAccessToken(user).getToken();
+    }
+
+    @Benchmark
+    public String createAccessToken(){
+        return generator.createAccessToken(user).getToken();
+    }
+
+    @Benchmark
+    public String createRefreshToken(){
+        return generator.createRefreshToken(user).getToken();
+    }
+
+    @Benchmark
+    public boolean verifyAccessToken() throws JwtTokenException {
+        return reader.verifyAccessToken(accessToken);
+    }
+
+    @Benchmark
+    public String getUsernameFromAccessToken() throws JwtTokenException {
+        return reader.getUsernameFromAccessToken(accessToken);
+    }
+
+    @Benchmark
+    public List<String> getRolesFromAccessToken(){
+        return jwtService.getRolesFromAccessToken(accessToken);
+    }
+
+    // What every call used to do: build a parser and derive the key from the secret before parsing
+    @Benchmark
+    public String parserPerCall(){
+        return Jwts.parserBuilder().setSigningKey(SECRET).build().parseClaimsJws(accessToken).getBody().getSubject();
+    }
+}
@@ -1,14 +1,24 @@
 package com.stb.blog;
 
 import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+import java.util.Arrays;
 
 @SpringBootApplication(exclude = {DataSourceAutoConfiguration.class })
+@EnableScheduling
 public class BlogApplication {
 
 	public static void main(String[] args) {
-		SpringApplication.run(BlogApplication.class, args);
+		SpringApplication application = new SpringApplication(BlogApplication.class);
+		// A bulk export or import runs without the web server and exits once done
+		if(Arrays.stream(args).anyMatch(arg -> arg.startsWith("--bulk.mode="))){
+			application.setWebApplicationType(WebApplicationType.NONE);
+		}
+		application.run(args);
 	}
 
 }
@@ -6,12 +6,15 @@ import com.stb.blog.models.User;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.io.Decoders;
 import io.jsonwebtoken.security.Keys;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.security.Key;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.TimeZone;
 
 @Component
@@ -20,6 +23,8 @@ public class JwtTokenGenerator {
     private final int FIVE_MINS = 1000*60*5;
     private final int HALF_HOUR = 1000 * 60 * 30;
     private final int ONE_DAY = 1000 * 60 * 60 * 24;
+    // Exact issue time, "iat" only has seconds and is shifted to GMT on refresh tokens
+    public static final String ISSUED_MILLIS = "issuedMillis";
 
 
     @Value("${jwt.secret}")
@@ -28,21 +33,29 @@ public class JwtTokenGenerator {
     @Value("${jwt.refresh.secret}")
     private String refreshSecret;
 
-    private Key getKey(){
-        return Keys.hmacShaKeyFor(Decoders.BASE64.decode(secret));
-    }
-    private Key getRefreshKey(){
-        return Keys.hmacShaKeyFor(Decoders.BASE64.decode(refreshSecret));
+    // Decoded once instead of on every token
+    private Key key;
+    private Key refreshKey;
+
+    @PostConstruct
+    public void init(){
+        key = Keys.hmacShaKeyFor(Decoders.BASE64.decode(secret));
+        refreshKey = Keys.hmacShaKeyFor(Decoders.BASE64.decode(refreshSecret));
     }
+
     public TokenReturn createAccessToken(User user){
         Date iss =  new Date();
         Date exp = new Date(new Date().getTime() + HALF_HOUR);
+        List<String> roles = new ArrayList<>();
+        for(var role : user.getRoles()) roles.add(role.getName());
         return new TokenReturn(Jwts.builder()
                 .setIssuer("SERVER")
                 .setSubject(user.getUsername())
                 .setExpiration(exp)
                 .setIssuedAt(iss)
-                .claim("role",user.getRoles().toString()).signWith(getKey()).compact(),exp);
+                .claim(ISSUED_MILLIS, iss.getTime())
+                .claim("role",user.getRoles().toString())
+                .claim("roles",roles).signWith(key).compact(),exp);
     }
     public TokenReturn createRefreshToken(User user){
         Date iss = Actions.getDateInGMT(new Date());
@@ -52,6 +65,7 @@ public class JwtTokenGenerator {
                 .setSubject(user.getUsername())
                 .setExpiration(exp)
                 .setIssuedAt(iss)
-                .signWith(getRefreshKey()).compact(),exp);
+                .claim(ISSUED_MILLIS, System.currentTimeMillis())
+                .signWith(refreshKey).compact(),exp);
     }
 }
\ No newline at end of file
@@ -6,17 +6,21 @@ import com.stb.blog.exceptions.JwtTokenExpiredException;
 import com.stb.blog.exceptions.JwtTokenNotFoundException;
 import com.stb.blog.exceptions.JwtTokenNotValidUserException;
 import com.stb.blog.models.User;
+import com.stb.blog.models.VerifiedToken;
+import com.stb.blog.services.RevocationRegistry;
 import com.stb.blog.services.UserService;
 import io.jsonwebtoken.*;
 import io.jsonwebtoken.io.Decoders;
 import io.jsonwebtoken.security.Keys;
 import io.jsonwebtoken.security.SignatureException;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.security.Key;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 @Component
 public class JwtTokenReader {
@@ -27,95 +31,112 @@ public class JwtTokenReader {
     @Value("${jwt.refresh.secret}")
     private String refreshSecret;
 
-    private Key getKey(){
-        return Keys.hmacShaKeyFor(Decoders.BASE64.decode(secret));
-    }
-    private Key getRefreshKey(){
-        return Keys.hmacShaKeyFor(Decoders.BASE64.decode(refreshSecret));
-    }
-
+    // Parsers are immutable and thread safe, built once with their keys
+    private JwtParser accessParser;
+    private JwtParser refreshParser;
 
     @Autowired
     UserService userService;
 
+    @Autowired
+    RevocationRegistry revocationRegistry;
+
+    // Trust the roles claim and the revocation registry instead of reading the user on every request
+    @Value("${security.jwt.claims-authorities:false}")
+    private boolean claimsAuthorities;
+
+    @PostConstruct
+    public void init(){
+        accessParser = Jwts.parserBuilder().setSigningKey(Keys.hmacShaKeyFor(Decoders.BASE64.decode(secret))).build();
+        refreshParser = Jwts.parserBuilder().setSigningKey(Keys.hmacShaKeyFor(Decoders.BASE64.decode(refreshSecret))).build();
+    }
+
+    /**
+     * Parses and verifies an access token once: signature, expiry and that its user exists.
+     */
+    public VerifiedToken readAccessToken(String jwtString) throws JwtTokenException {
+        return read(jwtString, accessParser, VerifiedToken.Type.ACCESS);
+    }
+
+    /**
+     * Same as {@link #readAccessToken(String)} for refresh tokens.
+     */
+    public VerifiedToken readRefreshToken(String jwtString) throws JwtTokenException {
+        return read(jwtString, refreshParser, VerifiedToken.Type.REFRESH);
+    }
 
     public boolean verifyAccessToken(String jwtString) throws JwtTokenException {
+        return readAccessToken(jwtString) != null;
+    }
+
+    public boolean verifyRefreshToken(String jwtString) throws JwtTokenException {
+        return readRefreshToken(jwtString) != null;
+    }
+
+    public String getUsernameFromAccessToken(String jwtString) throws JwtTokenException{
+        return parse(jwtString, accessParser).getSubject();
+    }
+
+    public String getUsernameFromRefreshToken(String jwtString) throws JwtTokenException{
+        return parse(jwtString, refreshParser).getSubject();
+    }
+
+    public List<String> getRolesFromAccessToken(String jwtString) throws JwtTokenException{
+        return rolesOf(parse(jwtString, accessParser));
+    }
+
+    private VerifiedToken read(String jwtString, JwtParser parser, VerifiedToken.Type type) throws JwtTokenException {
         Date currDate = new Date();
-        Jws<Claims> claims;
-        try {
-            claims = Jwts.parserBuilder().setSigningKey(secret).build().parseClaimsJws(jwtString);
-        } catch (SignatureException e) {
-            throw new JwtTokenNotFoundException("JWT not found.");
-        } catch (ExpiredJwtException e){
-            throw new JwtTokenExpiredException("Token expired");
-        }
-        Claims body = claims.getBody();
+        Claims body = parse(jwtString, parser);
         String subject = body.getSubject();
         Date exp = body.getExpiration();
-        if (currDate.before(exp)) {
-            User requestUser = userService.findUserByUsername(subject);
-            if (requestUser.getUsername().equalsIgnoreCase(subject)) {
-                return true;
-            }else{
-                throw new JwtTokenNotValidUserException("This user doesn't have authorization.");
-            }
-        }else{
-            throw new JwtTokenExpiredException("JWT is expired.");
+        if (exp == null || !currDate.before(exp)) throw new JwtTokenExpiredException("JWT is expired.");
+        if (claimsAuthorities && revocationRegistry.isReady() && hasRolesList(body, type)) {
+            if (revocationRegistry.isRevoked(subject, issuedMillis(body))) throw new JwtTokenNotValidUserException("Token has been revoked.");
+            return new VerifiedToken(jwtString, type, subject, rolesOf(body), body.getIssuedAt(), exp, true);
+        }
+        User requestUser = userService.findUserByUsername(subject);
+        if (requestUser == null || !requestUser.getUsername().equalsIgnoreCase(subject)) {
+            throw new JwtTokenNotValidUserException("This user doesn't have authorization.");
         }
+        return new VerifiedToken(jwtString, type, subject, rolesOf(body), body.getIssuedAt(), exp, false);
     }
 
-    public boolean verifyRefreshToken(String jwtString) throws JwtTokenException {
-        Date currDate = new Date();
-        Jws<Claims> claims;
+    private static Claims parse(String jwtString, JwtParser parser) throws JwtTokenException {
         try {
-            claims = Jwts.parserBuilder().setSigningKey(refreshSecret).build().parseClaimsJws(jwtString);
+            return parser.parseClaimsJws(jwtString).getBody();
         } catch (SignatureException e) {
             throw new JwtTokenNotFoundException("JWT not found.");
         } catch (ExpiredJwtException e){
             throw new JwtTokenExpiredException("Token expired");
-        }
-        Claims body = claims.getBody();
-        String subject = body.getSubject();
-        Date exp = body.getExpiration();
-        if (currDate.before(exp)) {
-            User requestUser = userService.findUserByUsername(subject);
-            if (requestUser.getUsername().equalsIgnoreCase(subject)) {
-                return true;
-            }else{
-                throw new JwtTokenNotValidUserException("This user doesn't have authorization.");
-            }
-        }else{
-            throw new JwtTokenExpiredException("JWT is expired.");
+        } catch (JwtException | IllegalArgumentException e){
+            throw new JwtTokenNotFoundException("JWT not valid.");
         }
     }
 
-    public String getUsernameFromAccessToken(String jwtString) throws JwtTokenException{
-        Claims claims;
-        try {
-            claims = Jwts.parserBuilder().setSigningKey(secret).build().parseClaimsJws(jwtString).getBody();
-        } catch (SignatureException e){
-            throw new JwtTokenNotFoundException("JWT not found.");
-        }
-        return claims.getSubject();
+    // Refresh tokens carry no roles, older access tokens only the "role" text and are checked against the user
+    private static boolean hasRolesList(Claims claims, VerifiedToken.Type type){
+        return type == VerifiedToken.Type.REFRESH || claims.get("roles") instanceof List<?>;
     }
 
-    public String getUsernameFromRefreshToken(String jwtString) throws JwtTokenException{
-        Claims claims;
-        try {
-            claims = Jwts.parserBuilder().setSigningKey(refreshSecret).build().parseClaimsJws(jwtString).getBody();
-        } catch (SignatureException e){
-            throw new JwtTokenNotFoundException("JWT not found.");
-        }
-        return claims.getSubject();
+    private static long issuedMillis(Claims claims){
+        Object issued = claims.get(JwtTokenGenerator.ISSUED_MILLIS);
+        if(issued instanceof Number number) return number.longValue();
+        return claims.getIssuedAt() == null ? 0 : claims.getIssuedAt().getTime();
     }
 
-    public String getRolesFromAccessToken(String jwtString) throws JwtTokenException{
-        Claims claims;
-        try{
-            claims = Jwts.parserBuilder().setSigningKey(secret).build().parseClaimsJws(jwtString).getBody();
-        }catch (SignatureException e){
-            throw new JwtTokenNotFoundException("JWT not found.");
+    // Roles come from the "roles" list claim, tokens from before it have the text of the role set in "role", e.g. "[ROLE_USER, ROLE_ADMIN]"
+    private static List<String> rolesOf(Claims claims){
+        List<String> roles = new ArrayList<>();
+        if(claims.get("roles") instanceof List<?> list){
+            for(var role : list) if(role != null) roles.add(role.toString());
+            return roles;
+        }
+        Object roleClaim = claims.get("role");
+        if(roleClaim == null) return roles;
+        for(var role : roleClaim.toString().replace("[","").replace("]","").split(",")){
+            if(!role.isBlank()) roles.add(role.trim());
         }
-        return claims.get("roles").toString();
+        return roles;
     }
-}
\ No newline at end of file
+}
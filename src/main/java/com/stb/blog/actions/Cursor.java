@@ -0,0 +1,36 @@
+package com.stb.blog.actions;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+/**
+ * Opaque keyset cursor made of a creation date and a tie breaking id.
+ * Clients only ever see the encoded form.
+ */
+public record Cursor(Date createdOn, String id) {
+
+    private static final String SEPARATOR = ":";
+
+    public String encode(){
+        String raw = createdOn.getTime() + SEPARATOR + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a cursor produced by {@link #encode()}.
+     * @param encoded The encoded cursor
+     * @return The cursor or null if it is malformed
+     */
+    public static Cursor decode(String encoded){
+        if(encoded == null || encoded.isEmpty()) return null;
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+            int split = raw.indexOf(SEPARATOR);
+            if(split <= 0 || split == raw.length()-1) return null;
+            return new Cursor(new Date(Long.parseLong(raw.substring(0,split))), raw.substring(split+1));
+        }catch (IllegalArgumentException e){
+            return null;
+        }
+    }
+}
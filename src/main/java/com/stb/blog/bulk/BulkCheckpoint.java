@@ -0,0 +1,67 @@
+package com.stb.blog.bulk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Progress of an unfinished export or import, kept in checkpoint.properties next to the segments.
+ * Saved after every finished segment, a run that failed picks up from here when started again.
+ */
+final class BulkCheckpoint {
+    private final Path file;
+    private final Properties values = new Properties();
+
+    private BulkCheckpoint(Path file){
+        this.file = file;
+    }
+
+    static BulkCheckpoint open(Path directory) throws IOException {
+        BulkCheckpoint checkpoint = new BulkCheckpoint(directory.resolve("checkpoint.properties"));
+        if(Files.exists(checkpoint.file)){
+            try (InputStream in = Files.newInputStream(checkpoint.file)) {
+                checkpoint.values.load(in);
+            }
+        }
+        return checkpoint;
+    }
+
+    synchronized String get(String key){
+        return values.getProperty(key);
+    }
+
+    /**
+     * Sets the keys together, a crash leaves either all of them or none.
+     */
+    synchronized void put(Map<String, String> entries){
+        values.putAll(entries);
+        save();
+    }
+
+    /**
+     * Forgets every key under the prefix, once that part of the run is complete.
+     */
+    synchronized void clear(String prefix){
+        values.keySet().removeIf(key -> key.toString().startsWith(prefix));
+        save();
+    }
+
+    // Caller holds the lock
+    private void save(){
+        Path partial = file.resolveSibling(file.getFileName() + ".partial");
+        try {
+            try (OutputStream out = Files.newOutputStream(partial)) {
+                values.store(out, null);
+            }
+            Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+}
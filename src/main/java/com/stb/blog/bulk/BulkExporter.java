@@ -0,0 +1,116 @@
+package com.stb.blog.bulk;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Sorts;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Reads each collection with one cursor in _id order and cuts it into segments, compressed and written on the pool
+ * while the cursor moves on. The checkpoint holds the segments written so far and the last _id in them, only
+ * advanced over segments that are all on disk, so a rerun deletes whatever came after and reads on from that _id.
+ */
+final class BulkExporter {
+    private final MongoTemplate mongoTemplate;
+    private final BulkProperties properties;
+    private final Path directory;
+    private final BulkCheckpoint checkpoint;
+    private final BulkProgress progress;
+    private final ExecutorService pool;
+    private final int threads;
+
+    BulkExporter(MongoTemplate mongoTemplate, BulkProperties properties, Path directory, BulkCheckpoint checkpoint,
+                 BulkProgress progress, ExecutorService pool, int threads){
+        this.mongoTemplate = mongoTemplate;
+        this.properties = properties;
+        this.directory = directory;
+        this.checkpoint = checkpoint;
+        this.progress = progress;
+        this.pool = pool;
+        this.threads = threads;
+    }
+
+    void export(String collection) throws IOException {
+        String prefix = "export." + collection + ".";
+        String segmentsDone = checkpoint.get(prefix + "segments");
+        String lastIdDone = checkpoint.get(prefix + "lastId");
+        int next = segmentsDone == null ? 0 : Integer.parseInt(segmentsDone);
+        // Leftovers of an earlier run, rewritten from the checkpoint
+        for(Path segment : SegmentFiles.list(directory, collection)){
+            if(SegmentFiles.number(segment) >= next) Files.delete(segment);
+        }
+
+        BsonDocument filter = new BsonDocument();
+        if(lastIdDone != null){
+            filter.put("_id", new BsonDocument("$gt", BsonDocument.parse(lastIdDone).get("_id")));
+        }
+        MongoCollection<RawBsonDocument> documents = mongoTemplate.getCollection(collection).withDocumentClass(RawBsonDocument.class);
+        long segmentBytes = (long) properties.getSegmentMegabytes() * 1024 * 1024;
+        // Segments being written, oldest first
+        Deque<Pending> pending = new ArrayDeque<>();
+        SegmentBuffer segment = new SegmentBuffer();
+        RawBsonDocument last = null;
+        long count = 0;
+        int number = next;
+
+        try (var cursor = documents.find(filter).sort(Sorts.ascending("_id")).batchSize(properties.getBatchSize()).cursor()) {
+            while(cursor.hasNext()){
+                last = cursor.next();
+                ByteBuffer bytes = last.getByteBuffer().asNIO();
+                segment.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+                count++;
+                if(segment.size() >= segmentBytes){
+                    pending.add(submit(collection, number++, segment, count, last.get("_id")));
+                    segment = new SegmentBuffer();
+                    count = 0;
+                    // Bounds the segments held in memory
+                    while(pending.size() > threads) complete(prefix, pending.poll());
+                    while(!pending.isEmpty() && pending.peek().written.isDone()) complete(prefix, pending.poll());
+                }
+            }
+        }
+        if(count > 0) pending.add(submit(collection, number, segment, count, last.get("_id")));
+        while(!pending.isEmpty()) complete(prefix, pending.poll());
+        checkpoint.clear(prefix);
+    }
+
+    private Pending submit(String collection, int number, SegmentBuffer segment, long count, BsonValue lastId){
+        CompletableFuture<Void> written = CompletableFuture.runAsync(() -> {
+            try {
+                SegmentFiles.write(SegmentFiles.path(directory, collection, number), segment.array(), segment.size());
+            }catch (IOException e){
+                throw new UncheckedIOException(e);
+            }
+            progress.add(collection, count, segment.size());
+        }, pool);
+        return new Pending(number, new BsonDocument("_id", lastId).toJson(), written);
+    }
+
+    private void complete(String prefix, Pending segment){
+        segment.written.join();
+        checkpoint.put(Map.of(prefix + "segments", String.valueOf(segment.number + 1), prefix + "lastId", segment.lastId));
+    }
+
+    private record Pending(int number, String lastId, CompletableFuture<Void> written){}
+
+    // Lets the segment be written from the buffer itself instead of a copy of it
+    private static final class SegmentBuffer extends ByteArrayOutputStream {
+        byte[] array(){
+            return buf;
+        }
+    }
+}
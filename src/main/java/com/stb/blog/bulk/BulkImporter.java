@@ -0,0 +1,124 @@
+package com.stb.blog.bulk;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.*;
+import org.bson.BsonDocument;
+import org.bson.RawBsonDocument;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Loads a collection's segments in parallel, each one decompressed, split into documents and written in unordered
+ * bulk writes on its own pool thread. Documents are written as read, never decoded into objects. The checkpoint
+ * lists the segments fully written, a rerun skips those and writes the others again, which upserts or duplicate
+ * _id skips make harmless. Documents clashing on another unique index are skipped, printed and counted.
+ */
+final class BulkImporter {
+    private static final int DUPLICATE_KEY = 11000;
+    private static final BulkWriteOptions UNORDERED = new BulkWriteOptions().ordered(false);
+    private static final ReplaceOptions UPSERT = new ReplaceOptions().upsert(true);
+
+    private final MongoTemplate mongoTemplate;
+    private final BulkProperties properties;
+    private final Path directory;
+    private final BulkCheckpoint checkpoint;
+    private final BulkProgress progress;
+    private final ExecutorService pool;
+
+    BulkImporter(MongoTemplate mongoTemplate, BulkProperties properties, Path directory, BulkCheckpoint checkpoint,
+                 BulkProgress progress, ExecutorService pool){
+        this.mongoTemplate = mongoTemplate;
+        this.properties = properties;
+        this.directory = directory;
+        this.checkpoint = checkpoint;
+        this.progress = progress;
+        this.pool = pool;
+    }
+
+    void load(String collection) throws IOException {
+        String key = "import." + collection + ".done";
+        Set<String> done = Collections.synchronizedSet(new TreeSet<>());
+        String doneBefore = checkpoint.get(key);
+        if(doneBefore != null && !doneBefore.isEmpty()) done.addAll(Arrays.asList(doneBefore.split(",")));
+
+        MongoCollection<RawBsonDocument> documents = mongoTemplate.getCollection(collection).withDocumentClass(RawBsonDocument.class);
+        List<CompletableFuture<Void>> segments = new ArrayList<>();
+        for(Path segment : SegmentFiles.list(directory, collection)){
+            String name = segment.getFileName().toString();
+            if(done.contains(name)) continue;
+            segments.add(CompletableFuture.runAsync(() -> {
+                try {
+                    load(collection, documents, segment);
+                }catch (IOException e){
+                    throw new UncheckedIOException(e);
+                }
+                synchronized (done){
+                    done.add(name);
+                    checkpoint.put(Map.of(key, String.join(",", done)));
+                }
+            }, pool));
+        }
+        CompletableFuture.allOf(segments.toArray(CompletableFuture[]::new)).join();
+        checkpoint.clear(key);
+    }
+
+    private void load(String collection, MongoCollection<RawBsonDocument> documents, Path segment) throws IOException {
+        List<WriteModel<RawBsonDocument>> batch = new ArrayList<>(properties.getBatchSize());
+        long[] batchBytes = {0};
+        SegmentFiles.read(segment, record -> {
+            RawBsonDocument document = new RawBsonDocument(record);
+            batch.add(properties.isUpsert()
+                    ? new ReplaceOneModel<>(new BsonDocument("_id", document.get("_id")), document, UPSERT)
+                    : new InsertOneModel<>(document));
+            batchBytes[0] += record.length;
+            if(batch.size() >= properties.getBatchSize()){
+                write(collection, documents, batch, batchBytes[0]);
+                batch.clear();
+                batchBytes[0] = 0;
+            }
+        });
+        if(!batch.isEmpty()){
+            write(collection, documents, batch, batchBytes[0]);
+        }
+    }
+
+    private void write(String collection, MongoCollection<RawBsonDocument> documents, List<WriteModel<RawBsonDocument>> batch, long bytes){
+        int skipped = 0;
+        try {
+            documents.bulkWrite(batch, UNORDERED);
+        }catch (MongoBulkWriteException e){
+            if(e.getWriteConcernError() != null) throw e;
+            for(BulkWriteError error : e.getWriteErrors()){
+                if(error.getCode() != DUPLICATE_KEY) throw e;
+                // Inserting what an earlier run already wrote, the rest of the batch went in
+                if(onId(error)) continue;
+                // Clashes on another unique index, e.g. a username taken under a different _id, are reported
+                skipped++;
+                System.out.println("Skipped " + collection + " " + idOf(batch.get(error.getIndex())) + ": " + error.getMessage());
+            }
+        }
+        progress.add(collection, batch.size() - skipped, bytes);
+        progress.skip(collection, skipped);
+    }
+
+    private static boolean onId(BulkWriteError error){
+        BsonDocument keyPattern = error.getDetails().getDocument("keyPattern", null);
+        if(keyPattern != null) return keyPattern.size() == 1 && keyPattern.containsKey("_id");
+        // The server only names the index in the message
+        return error.getMessage().contains(" index: _id_ ");
+    }
+
+    private static String idOf(WriteModel<RawBsonDocument> model){
+        RawBsonDocument document = model instanceof InsertOneModel<RawBsonDocument> insert ? insert.getDocument()
+                : ((ReplaceOneModel<RawBsonDocument>) model).getReplacement();
+        return document.get("_id").toString();
+    }
+}
@@ -0,0 +1,55 @@
+package com.stb.blog.bulk;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Documents and bytes moved per collection, printed as totals and rates since the run started, with any skipped documents.
+ */
+final class BulkProgress {
+    private final long startNanos = System.nanoTime();
+    private final Map<String, LongAdder[]> counts = new ConcurrentHashMap<>();
+
+    void add(String collection, long documents, long bytes){
+        LongAdder[] count = counts(collection);
+        count[0].add(documents);
+        count[1].add(bytes);
+    }
+
+    // Documents left out because they clash with one already stored
+    void skip(String collection, long documents){
+        if(documents > 0) counts(collection)[2].add(documents);
+    }
+
+    long skipped(){
+        long skipped = 0;
+        for(var count : counts.values()) skipped += count[2].sum();
+        return skipped;
+    }
+
+    private LongAdder[] counts(String collection){
+        return counts.computeIfAbsent(collection, c -> new LongAdder[]{new LongAdder(), new LongAdder(), new LongAdder()});
+    }
+
+    void report(String mode){
+        double seconds = Math.max(0.001, (System.nanoTime() - startNanos) / 1_000_000_000.0);
+        long allDocuments = 0, allBytes = 0, allSkipped = 0;
+        for(var entry : counts.entrySet()){
+            long documents = entry.getValue()[0].sum();
+            long bytes = entry.getValue()[1].sum();
+            long skipped = entry.getValue()[2].sum();
+            allDocuments += documents;
+            allBytes += bytes;
+            allSkipped += skipped;
+            System.out.println(line(mode + " " + entry.getKey(), documents, bytes, skipped, seconds));
+        }
+        System.out.println(line(mode + " total", allDocuments, allBytes, allSkipped, seconds));
+    }
+
+    private static String line(String label, long documents, long bytes, long skipped, double seconds){
+        return String.format("%s: %,d docs, %.1f MB in %.0fs, %,.0f docs/s, %.1f MB/s%s",
+                label, documents, bytes / 1_048_576.0, seconds, documents / seconds, bytes / 1_048_576.0 / seconds,
+                skipped == 0 ? "" : String.format(", %,d skipped", skipped));
+    }
+}
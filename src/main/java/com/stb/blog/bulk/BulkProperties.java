@@ -0,0 +1,30 @@
+package com.stb.blog.bulk;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Settings of {@link BulkTransferRunner}, e.g. --bulk.mode=export --bulk.directory=/backups/blog
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "bulk")
+public class BulkProperties {
+    // export or import, unset runs the server as usual
+    private String mode;
+    private String directory = "bulk";
+    private List<String> collections = new ArrayList<>(List.of("Posts", "Users", "Comments"));
+    // A segment file is closed once this much BSON went into it, before compression
+    private int segmentMegabytes = 32;
+    // Documents per cursor batch on export and per bulk write on import
+    private int batchSize = 1000;
+    // Segments compressed or decoded at once, 0 uses one per core
+    private int threads = 0;
+    // Replace documents that already exist instead of skipping them
+    private boolean upsert = true;
+    private int reportSeconds = 5;
+}
@@ -0,0 +1,85 @@
+package com.stb.blog.bulk;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Backs up or seeds the collections from the command line and exits, e.g.
+ * java -jar blog.jar --bulk.mode=export --bulk.directory=/backups/blog, then --bulk.mode=import to load it back.
+ * Prints throughput while it runs, a failed run is started again with the same arguments and resumes from its checkpoint.
+ * The Users segments hold password hashes, keep the directory as private as the database.
+ */
+@Component
+@ConditionalOnProperty("bulk.mode")
+public class BulkTransferRunner implements ApplicationRunner {
+    @Autowired
+    private MongoTemplate mongoTemplate;
+    @Autowired
+    private BulkProperties properties;
+    @Autowired
+    private ApplicationContext context;
+
+    @Override
+    public void run(ApplicationArguments args){
+        System.exit(SpringApplication.exit(context, this::transfer));
+    }
+
+    private int transfer(){
+        String mode = properties.getMode();
+        if(!mode.equals("export") && !mode.equals("import")){
+            System.out.println("Unknown bulk.mode " + mode + ", expected export or import");
+            return 2;
+        }
+        int threads = properties.getThreads() > 0 ? properties.getThreads() : Runtime.getRuntime().availableProcessors();
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "bulk-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        BulkProgress progress = new BulkProgress();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bulk-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> progress.report(mode), properties.getReportSeconds(), properties.getReportSeconds(), TimeUnit.SECONDS);
+        try {
+            Path directory = Path.of(properties.getDirectory());
+            Files.createDirectories(directory);
+            BulkCheckpoint checkpoint = BulkCheckpoint.open(directory);
+            if(mode.equals("export")){
+                BulkExporter exporter = new BulkExporter(mongoTemplate, properties, directory, checkpoint, progress, pool, threads);
+                for(String collection : properties.getCollections()) exporter.export(collection);
+            }else {
+                BulkImporter importer = new BulkImporter(mongoTemplate, properties, directory, checkpoint, progress, pool);
+                for(String collection : properties.getCollections()) importer.load(collection);
+            }
+            if(progress.skipped() > 0){
+                System.out.println("Bulk " + mode + " finished, " + progress.skipped() + " documents skipped, see above");
+                return 3;
+            }
+            System.out.println("Bulk " + mode + " finished");
+            return 0;
+        }catch (Exception e){
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            System.out.println("Bulk " + mode + " failed, run it again to resume: " + cause);
+            return 1;
+        }finally {
+            reporter.shutdownNow();
+            pool.shutdownNow();
+            progress.report(mode);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.stb.blog.bulk;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzipped segment files of a collection, named Posts-00000.bson.gz, Posts-00001.bson.gz and so on.
+ * A segment is a run of BSON documents back to back, each starting with its own little endian int32 length,
+ * the same layout mongodump writes, so records are read without parsing them.
+ */
+final class SegmentFiles {
+    private static final String SUFFIX = ".bson.gz";
+    private static final int BUFFER_BYTES = 1 << 16;
+    // Largest document Mongo stores, a bigger length means a corrupt file
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+    private SegmentFiles(){}
+
+    static Path path(Path directory, String collection, int number){
+        return directory.resolve(String.format("%s-%05d%s", collection, number, SUFFIX));
+    }
+
+    /**
+     * The collection's segments in order.
+     */
+    static List<Path> list(Path directory, String collection) throws IOException {
+        Pattern name = Pattern.compile(Pattern.quote(collection) + "-(\\d+)" + Pattern.quote(SUFFIX));
+        List<Path> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> name.matcher(file.getFileName().toString()).matches())
+                    .sorted()
+                    .forEach(segments::add);
+        }
+        return segments;
+    }
+
+    static int number(Path segment){
+        Matcher matcher = Pattern.compile("-(\\d+)" + Pattern.quote(SUFFIX) + "$").matcher(segment.getFileName().toString());
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    /**
+     * Writes a whole segment to a temporary file and moves it in place, a crash never leaves half a segment.
+     */
+    static void write(Path segment, byte[] records, int length) throws IOException {
+        Path partial = segment.resolveSibling(segment.getFileName() + ".partial");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(partial), BUFFER_BYTES)) {
+            out.write(records, 0, length);
+        }
+        Files.move(partial, segment, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Hands every record of the segment to the consumer, each in its own array.
+     */
+    static void read(Path segment, Consumer<byte[]> consumer) throws IOException {
+        try (InputStream in = new BufferedInputStream(new GZIPInputStream(Files.newInputStream(segment), BUFFER_BYTES), BUFFER_BYTES)) {
+            byte[] prefix = new byte[4];
+            while(true){
+                int read = in.readNBytes(prefix, 0, 4);
+                if(read == 0) return;
+                if(read < 4) throw new EOFException("Truncated record in " + segment);
+                int length = ByteBuffer.wrap(prefix).order(ByteOrder.LITTLE_ENDIAN).getInt();
+                if(length < 5 || length > MAX_RECORD_BYTES) throw new IOException("Bad record length " + length + " in " + segment);
+                byte[] record = new byte[length];
+                System.arraycopy(prefix, 0, record, 0, 4);
+                if(in.readNBytes(record, 4, length - 4) < length - 4) throw new EOFException("Truncated record in " + segment);
+                consumer.accept(record);
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.stb.blog.configs;
 
+import com.stb.blog.exceptions.JwtTokenException;
+import com.stb.blog.models.VerifiedToken;
 import com.stb.blog.services.JwtService;
 import com.stb.blog.services.UserService;
 import jakarta.servlet.FilterChain;
@@ -9,7 +11,9 @@ import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.User;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.web.authentication.WebAuthenticationDetailsSource;
 import org.springframework.stereotype.Component;
@@ -42,15 +46,29 @@ public class JwtRequestFilter extends OncePerRequestFilter {
             return;
         }
 
-        // Extract and validate token
-        final String token = requestTokenHeader.substring(BEARER.length());
-        if(!jwtService.validateAccessToken(token)){
+        // Verify the token once, the result stays on the request for the controllers
+        VerifiedToken verifiedToken;
+        try {
+            verifiedToken = jwtService.getVerifiedToken(requestTokenHeader);
+        }catch (JwtTokenException e){
+            filterChain.doFilter(request,response);
+            return;
+        }
+        if(!verifiedToken.isAccessToken()){
             filterChain.doFilter(request,response);
             return;
         }
 
-        // Get user identity
-        UserDetails userDetails = userService.loadUserByUsername(jwtService.getUsernameFromAccessToken(token));
+        // Get user identity, from the token claims or already resolved for this request while verifying
+        UserDetails userDetails;
+        if(verifiedToken.fromClaims()){
+            userDetails = User.withUsername(verifiedToken.username())
+                    .password("")
+                    .authorities(verifiedToken.roles().stream().map(SimpleGrantedAuthority::new).toList())
+                    .build();
+        }else {
+            userDetails = userService.loadUserByUsername(verifiedToken.username());
+        }
 
         UsernamePasswordAuthenticationToken authenticationToken = new UsernamePasswordAuthenticationToken(userDetails,null,userDetails==null? List.of():userDetails.getAuthorities());
         authenticationToken.setDetails( new WebAuthenticationDetailsSource().buildDetails(request));
@@ -0,0 +1,212 @@
+package com.stb.blog.configs;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limits the public auth endpoints by remote address and by username, before any token, Mongo or BCrypt work.
+ * Each key has a token bucket held in a bounded map that drops idle buckets. Over the limit answers 429 with Retry-After.
+ */
+@Component
+public class RateLimitFilter extends OncePerRequestFilter {
+    // Largest body read for a username, larger ones are refused on endpoints limited per username
+    private static final int MAX_BODY_BYTES = 16 * 1024;
+
+    @Autowired
+    RateLimitProperties properties;
+    @Autowired
+    ObjectMapper objectMapper;
+
+    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+    private Cache<String, Bucket> buckets;
+
+    @PostConstruct
+    public void init(){
+        buckets = Caffeine.newBuilder()
+                .maximumSize(properties.getMaxBuckets())
+                .expireAfterAccess(Duration.ofSeconds(properties.getIdleSeconds()))
+                .build();
+    }
+
+    @Override
+    protected void doFilterInternal(
+            HttpServletRequest request,
+            HttpServletResponse response,
+            FilterChain filterChain
+    ) throws ServletException, IOException {
+        if(!properties.isEnabled()){
+            filterChain.doFilter(request,response);
+            return;
+        }
+        String path = request.getServletPath();
+        for(var entry : properties.getEndpoints().entrySet()){
+            var endpoint = entry.getValue();
+            if(endpoint.getPath() == null || !endpoint.getMethod().equalsIgnoreCase(request.getMethod())) continue;
+            if(!pathMatcher.match(endpoint.getPath(), path)) continue;
+
+            long waitNanos = 0;
+            if(endpoint.getPerAddress() != null){
+                waitNanos = acquire(entry.getKey() + ":address:" + remoteAddress(request), endpoint.getPerAddress());
+            }
+            if(waitNanos == 0 && endpoint.getPerUsername() != null){
+                String username = pathMatcher.extractUriTemplateVariables(endpoint.getPath(), path).get("username");
+                if(username == null){
+                    var cached = CachedBodyRequest.of(request);
+                    if(cached == null){
+                        // Not let through on the address limit alone, a login body is nowhere near this
+                        response.setStatus(HttpStatus.PAYLOAD_TOO_LARGE.value());
+                        return;
+                    }
+                    request = cached;
+                    username = usernameFromBody(cached.body);
+                }
+                if(username != null){
+                    waitNanos = acquire(entry.getKey() + ":username:" + username.toLowerCase(), endpoint.getPerUsername());
+                }
+            }
+            if(waitNanos > 0){
+                response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+                response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999_999_999))));
+                return;
+            }
+            break;
+        }
+        filterChain.doFilter(request,response);
+    }
+
+    // 0 when allowed, otherwise how long until a request would be
+    private long acquire(String key, RateLimitProperties.Limit limit){
+        return buckets.get(key, k -> new Bucket(limit)).tryAcquire(System.nanoTime());
+    }
+
+    private String remoteAddress(HttpServletRequest request){
+        if(properties.isTrustForwardedFor()){
+            String forwarded = request.getHeader("X-Forwarded-For");
+            if(forwarded != null && !forwarded.isBlank()) return forwarded.split(",")[0].trim();
+        }
+        return request.getRemoteAddr();
+    }
+
+    private String usernameFromBody(byte[] body){
+        if(body.length == 0) return null;
+        try {
+            JsonNode username = objectMapper.readTree(body).get("username");
+            return username != null && username.isTextual() ? username.asText() : null;
+        }catch (IOException e){
+            return null;
+        }
+    }
+
+    /**
+     * Token bucket kept as the single time at which it would be empty again (GCRA), so taking a token is one CAS.
+     */
+    static final class Bucket {
+        private final long interval;
+        private final long burst;
+        private final AtomicLong emptyAt = new AtomicLong(Long.MIN_VALUE);
+
+        Bucket(RateLimitProperties.Limit limit){
+            interval = TimeUnit.MINUTES.toNanos(1) / Math.max(1, limit.getRefillPerMinute());
+            burst = interval * Math.max(1, limit.getCapacity());
+        }
+
+        long tryAcquire(long now){
+            while(true){
+                long current = emptyAt.get();
+                long next = (current == Long.MIN_VALUE ? now : Math.max(current, now)) + interval;
+                long over = next - now - burst;
+                if(over > 0) return over;
+                if(emptyAt.compareAndSet(current, next)) return 0;
+            }
+        }
+    }
+
+    // Lets the filter read a small JSON body and the controller read it again
+    private static final class CachedBodyRequest extends HttpServletRequestWrapper {
+        private final byte[] body;
+
+        private CachedBodyRequest(HttpServletRequest request, byte[] body){
+            super(request);
+            this.body = body;
+        }
+
+        /**
+         * Reads the body whatever its declared length or type, chunked bodies included.
+         * @return The wrapped request, or null when the body is over MAX_BODY_BYTES
+         */
+        static CachedBodyRequest of(HttpServletRequest request) throws IOException {
+            if(request instanceof CachedBodyRequest cached) return cached;
+            if(request.getContentLengthLong() > MAX_BODY_BYTES) return null;
+            byte[] body = request.getInputStream().readNBytes(MAX_BODY_BYTES + 1);
+            if(body.length > MAX_BODY_BYTES) return null;
+            return new CachedBodyRequest(request, body);
+        }
+
+        @Override
+        public ServletInputStream getInputStream(){
+            ByteArrayInputStream input = new ByteArrayInputStream(body);
+            return new ServletInputStream() {
+                @Override
+                public boolean isFinished(){
+                    return input.available() == 0;
+                }
+
+                @Override
+                public boolean isReady(){
+                    return true;
+                }
+
+                @Override
+                public void setReadListener(ReadListener readListener){
+                    // The whole body is already in memory, so it is available and complete at once
+                    try {
+                        readListener.onDataAvailable();
+                        readListener.onAllDataRead();
+                    }catch (IOException e){
+                        readListener.onError(e);
+                    }
+                }
+
+                @Override
+                public int read(){
+                    return input.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len){
+                    return input.read(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public BufferedReader getReader(){
+            String encoding = getCharacterEncoding();
+            return new BufferedReader(new InputStreamReader(getInputStream(),
+                    encoding == null ? StandardCharsets.UTF_8 : Charset.forName(encoding)));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.stb.blog.configs;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits of {@link RateLimitFilter}, one entry per endpoint under rate-limit.endpoints.
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "rate-limit")
+public class RateLimitProperties {
+    private boolean enabled = true;
+    // Use the first X-Forwarded-For address, only behind a proxy that sets it
+    private boolean trustForwardedFor = false;
+    // Buckets kept at most, idle ones are dropped first
+    private long maxBuckets = 100_000;
+    private long idleSeconds = 600;
+    private Map<String, Endpoint> endpoints = new LinkedHashMap<>();
+
+    @Data
+    @NoArgsConstructor
+    public static class Endpoint {
+        // Ant pattern, a {username} variable takes the username from the path instead of the JSON body
+        private String path;
+        private String method = "POST";
+        private Limit perAddress;
+        private Limit perUsername;
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Limit {
+        // Requests allowed in a burst, refilled at refillPerMinute
+        private int capacity;
+        private int refillPerMinute;
+    }
+}
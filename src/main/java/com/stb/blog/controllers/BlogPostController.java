@@ -1,19 +1,27 @@
 package com.stb.blog.controllers;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.stb.blog.exceptions.JwtTokenException;
 import com.stb.blog.models.*;
+import com.stb.blog.actions.Cursor;
+import com.stb.blog.services.BlogPostCommentService;
 import com.stb.blog.services.BlogPostService;
 import com.stb.blog.services.JwtService;
+import com.stb.blog.services.PostJsonCache;
 import com.stb.blog.services.UserService;
 import jakarta.annotation.security.DeclareRoles;
+import jakarta.servlet.http.HttpServletResponse;
 import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -26,24 +34,50 @@ public class BlogPostController {
     @Autowired
     BlogPostService blogPostService;
 
+    @Autowired
+    BlogPostCommentService blogPostCommentService;
+
     @Autowired
     JwtService jwtService;
 
     @Autowired
     UserService userService;
 
+    @Autowired
+    PostJsonCache postJsonCache;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
     // Get Methods
 
     @GetMapping("/")
-    public ResponseEntity<List<BlogPostReturn>> getAllBlogPosts(){
-        return new ResponseEntity<>(blogPostService.getAllBlogPosts().stream().map(blogPost -> blogPost.getBlogPostReturn()).toList(), HttpStatus.OK);
+    public ResponseEntity<CursorPage<BlogPostSummary>> getAllBlogPosts(
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = ""+BlogPostService.DEFAULT_PAGE_SIZE) int size,
+            WebRequest webRequest
+    ){
+        if(listingNotModified(webRequest)) return new ResponseEntity<>(HttpStatus.NOT_MODIFIED);
+        var page = blogPostService.getBlogPostPage(cursor, size);
+        if(page == null) return new ResponseEntity<>(null,HttpStatus.BAD_REQUEST);
+        return new ResponseEntity<>(page, HttpStatus.OK);
+    }
+
+    @GetMapping(value = "/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    @PreAuthorize("hasRole('ROLE_OWNER') or hasRole('ROLE_ADMIN')")
+    public void exportBlogPosts(@RequestParam(defaultValue = "false") boolean comments, HttpServletResponse response) throws IOException {
+        // Written on the request thread, an async response would be cut off by the async timeout on large exports
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+        response.setCharacterEncoding("UTF-8");
+        blogPostService.exportBlogPosts(response.getOutputStream(), comments);
     }
 
     @GetMapping("/latest")
     public ResponseEntity<BlogPostWithAuthorDetails> getLatestBlogPost(){
-        var list = blogPostService.getAllBlogPosts();
-        if(list == null || list.isEmpty())return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
-        BlogPost latest = list.get(list.size()-1);
+        var list = blogPostService.getLatestBlogPosts(1);
+        if(list.isEmpty())return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
+        BlogPost latest = list.get(0);
         var user = userService.findUserByUsername(latest.getAuthor());
         AuthorDetails authorDetails;
         if(user == null){
@@ -56,34 +90,96 @@ public class BlogPostController {
     }
 
     @GetMapping("/latest/{num}")
-    public ResponseEntity<List<BlogPostReturn>> getLatestNBlogPost(@PathVariable int num){
-        var list = blogPostService.getAllBlogPosts();
-        if(list == null || list.isEmpty())return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
-        BlogPost[] latest = new BlogPost[num];
-        while(num>0){
-            num--;
-            latest[num]=list.get(list.size()-num-1);
-        }
-        return new ResponseEntity<>(Arrays.stream(latest).map((var v)->v.getBlogPostReturn()).toList(),HttpStatus.OK);
+    public ResponseEntity<List<BlogPostSummary>> getLatestNBlogPost(@PathVariable int num, WebRequest webRequest){
+        if(num < 1) return new ResponseEntity<>(null,HttpStatus.BAD_REQUEST);
+        if(listingNotModified(webRequest)) return new ResponseEntity<>(HttpStatus.NOT_MODIFIED);
+        var list = blogPostService.getLatestBlogPostSummaries(num);
+        if(list.isEmpty())return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
+        return new ResponseEntity<>(list,HttpStatus.OK);
 
     }
 
     @GetMapping("/post/{blogId}")
-    public ResponseEntity<BlogPostReturn> getBlogPostById(@PathVariable String blogId){
+    public ResponseEntity<BlogPostReturn> getBlogPostById(
+            @PathVariable String blogId,
+            @RequestParam(defaultValue = "true") boolean comments,
+            WebRequest webRequest,
+            HttpServletResponse response
+    ) throws IOException {
+        // Checked against the version fields before the post and its comments are loaded and rendered
+        var version = blogPostService.getBlogPostVersion(blogId);
+        if(version == null) return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
+        String eTag = comments ? version.eTag() : version.eTag("without-comments");
+        if(webRequest.checkNotModified(eTag, version.lastModifiedMillis())) return new ResponseEntity<>(HttpStatus.NOT_MODIFIED);
+
+        // Hot posts are written straight from their cached JSON, null tells Spring the response is done
+        try(var cached = postJsonCache.get(blogId, comments, version.tag())){
+            if(cached != null){
+                writeJson(response, cached.length());
+                cached.writeTo(response.getOutputStream());
+                return null;
+            }
+        }
         var blogPost = blogPostService.getBlogPostWithBlogId(blogId);
         if(blogPost==null) return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
-        return new ResponseEntity<>(blogPost.getBlogPostReturn(),HttpStatus.OK);
+        var blogPostReturn = comments?blogPost.getBlogPostReturn():blogPost.getBlogPostReturnWithoutComments();
+        if(!postJsonCache.isEnabled()) return new ResponseEntity<>(blogPostReturn,HttpStatus.OK);
+
+        byte[] json = objectMapper.writeValueAsBytes(blogPostReturn);
+        postJsonCache.put(blogId, comments, version.tag(), json);
+        writeJson(response, json.length);
+        response.getOutputStream().write(json);
+        return null;
+    }
+
+    @GetMapping("/post/{blogId}/comments")
+    public ResponseEntity<CursorPage<BlogPostCommentThreadReturn>> getBlogPostComments(
+            @PathVariable String blogId,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = ""+BlogPostCommentService.DEFAULT_PAGE_SIZE) int size,
+            @RequestParam(defaultValue = ""+BlogPostCommentService.DEFAULT_DEPTH) int maxDepth
+    ){
+        if(cursor != null && Cursor.decode(cursor) == null) return new ResponseEntity<>(null,HttpStatus.BAD_REQUEST);
+        var page = blogPostCommentService.getComments(blogId, cursor, size, maxDepth);
+        if(page == null) return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
+        return new ResponseEntity<>(page,HttpStatus.OK);
+    }
+
+    @GetMapping("/comment/{blogId}/{commentId}/replies")
+    public ResponseEntity<CursorPage<BlogPostCommentThreadReturn>> getBlogPostCommentReplies(
+            @PathVariable String blogId,
+            @PathVariable String commentId,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = ""+BlogPostCommentService.DEFAULT_PAGE_SIZE) int size,
+            @RequestParam(defaultValue = ""+BlogPostCommentService.DEFAULT_DEPTH) int maxDepth
+    ){
+        if(cursor != null && Cursor.decode(cursor) == null) return new ResponseEntity<>(null,HttpStatus.BAD_REQUEST);
+        var page = blogPostCommentService.getReplies(blogId, commentId, cursor, size, maxDepth);
+        if(page == null) return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
+        return new ResponseEntity<>(page,HttpStatus.OK);
     }
 
     @GetMapping("/search/title/{titleSnip}")
-    public ResponseEntity<List<BlogPostReturn>> getBlogPostsWithTitle(@PathVariable String titleSnip){
-        return new ResponseEntity<>(blogPostService.getAllBlogPostsWithTitleContaining(titleSnip).stream().map(blogPost -> blogPost.getBlogPostReturn()).toList(),HttpStatus.OK);
+    public ResponseEntity<List<BlogPostSummary>> getBlogPostsWithTitle(@PathVariable String titleSnip, WebRequest webRequest){
+        if(listingNotModified(webRequest)) return new ResponseEntity<>(HttpStatus.NOT_MODIFIED);
+        return new ResponseEntity<>(blogPostService.getAllBlogPostsWithTitleContaining(titleSnip),HttpStatus.OK);
+    }
+
+    @GetMapping("/search/text")
+    public ResponseEntity<SearchResults> searchBlogPosts(
+            @RequestParam String q,
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(defaultValue = ""+BlogPostService.DEFAULT_PAGE_SIZE) int size
+    ){
+        if(q.isBlank()) return new ResponseEntity<>(null,HttpStatus.BAD_REQUEST);
+        return new ResponseEntity<>(blogPostService.searchBlogPosts(q,page,size),HttpStatus.OK);
     }
 
     @GetMapping("/search/date/after/{dateString}")
-    public ResponseEntity<List<BlogPostReturn>> getBlogPostsCreatedAfterDate(@PathVariable String dateString) throws ParseException {
+    public ResponseEntity<List<BlogPostSummary>> getBlogPostsCreatedAfterDate(@PathVariable String dateString, WebRequest webRequest) throws ParseException {
+        if(listingNotModified(webRequest)) return new ResponseEntity<>(HttpStatus.NOT_MODIFIED);
         Date date= new SimpleDateFormat("dd-mm-yyyy").parse(dateString);
-        return new ResponseEntity<>(blogPostService.getAllBlogPostsMadeAfter(date).stream().map(blogPost -> blogPost.getBlogPostReturn()).toList(),HttpStatus.OK);
+        return new ResponseEntity<>(blogPostService.getAllBlogPostsMadeAfter(date),HttpStatus.OK);
     }
 
     // Post/Put Methods
@@ -96,14 +192,14 @@ public class BlogPostController {
         if(!payload.containsKey("title") || !payload.containsKey("body") )return new ResponseEntity<>(null,HttpStatus.BAD_REQUEST);
 
         //Check if token is still valid
-        String jwtString ;
+        VerifiedToken jwtToken;
         try {
-            jwtString=jwtService.getJWTFromBearerToken(bearerToken);
+            jwtToken=jwtService.getVerifiedToken(bearerToken);
         }catch (JwtTokenException e){
             return new ResponseEntity<>(null,HttpStatus.UNAUTHORIZED);
         }
 
-        String author = jwtService.getUsernameFromAccessToken(jwtString);
+        String author = jwtService.getUsernameFromAccessToken(jwtToken);
         String title = payload.get("title").toString();
         String body = payload.get("body").toString();
         BlogPost bp = new BlogPost();
@@ -129,15 +225,15 @@ public class BlogPostController {
         }
 
         //Check if token is still valid
-        String jwtString ;
+        VerifiedToken jwtToken;
         try {
-            jwtString=jwtService.getJWTFromBearerToken(bearerToken);
+            jwtToken=jwtService.getVerifiedToken(bearerToken);
         }catch (JwtTokenException e){
             return new ResponseEntity<>(null,HttpStatus.UNAUTHORIZED);
         }
 
         // get user
-        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtString));
+        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtToken));
         if(requestUser == null){
             return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
         }
@@ -200,14 +296,14 @@ public class BlogPostController {
         blogPostComment.setReplies(new ArrayList<BlogPostComment>());
 
         //Check if token is still valid
-        String jwtString ;
+        VerifiedToken jwtToken;
         try {
-            jwtString=jwtService.getJWTFromBearerToken(bearerToken);
+            jwtToken=jwtService.getVerifiedToken(bearerToken);
         }catch (JwtTokenException e){
             return new ResponseEntity<>(null,HttpStatus.UNAUTHORIZED);
         }
         // Set author
-        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtString));
+        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtToken));
         if(requestUser == null){
             return new ResponseEntity<>(null, HttpStatus.NOT_FOUND);
         }
@@ -227,16 +323,9 @@ public class BlogPostController {
 
         BlogPost blogPost = blogPostService.getBlogPostWithBlogId(blogPostComment.getBlogId());
         if(blogPost == null) return new ResponseEntity<>(null,HttpStatus.BAD_REQUEST);
-        if(blogPostComment.getParentCommentId()!=null){
-            var parentBlogPost = blogPost.findCommentById(blogPostComment.getParentCommentId());
-            if(parentBlogPost.isEmpty()) return new ResponseEntity<>(null,HttpStatus.BAD_REQUEST);
-            parentBlogPost.get().addComment(blogPostComment);
-        }
-        else{
-            blogPost.addComment(blogPostComment);
-        }
-        var savedBlogPost = blogPostService.updateBlogPost(blogPost);
-        return new ResponseEntity<>(savedBlogPost.getBlogPostReturn(),HttpStatus.CREATED);
+        var saved = blogPostService.addCommentToBlogPost(blogPost, blogPostComment);
+        if(saved == null) return new ResponseEntity<>(null,HttpStatus.BAD_REQUEST);
+        return new ResponseEntity<>(blogPost.getBlogPostReturn(),HttpStatus.CREATED);
     }
 
 
@@ -251,9 +340,9 @@ public class BlogPostController {
         boolean hasChanged = false;
 
         //Check if token is still valid
-        String jwtString ;
+        VerifiedToken jwtToken;
         try {
-            jwtString=jwtService.getJWTFromBearerToken(bearerToken);
+            jwtToken=jwtService.getVerifiedToken(bearerToken);
         }catch (JwtTokenException e){
             return new ResponseEntity<>(e.getMessage(),HttpStatus.UNAUTHORIZED);
         }
@@ -268,7 +357,7 @@ public class BlogPostController {
         var blogPostComment = blogPostCommentOptional.get();
 
         //Check role
-        String requestUsername = jwtService.getUsernameFromAccessToken(jwtString);
+        String requestUsername = jwtService.getUsernameFromAccessToken(jwtToken);
         User requestUser = userService.findUserByUsername(requestUsername);
         if(requestUser == null)return new ResponseEntity<>("User not found.",HttpStatus.NOT_FOUND);
 
@@ -291,8 +380,8 @@ public class BlogPostController {
             // If Updated save to database and return new BlogPost
             if(hasChanged){
                 blogPostComment.setLastUpdated(dateNow);
-                var saved = blogPostService.updateBlogPost(blogPost);
-                return new ResponseEntity<>(saved,HttpStatus.CREATED);
+                blogPostService.updateBlogPostComment(blogPost, blogPostComment);
+                return new ResponseEntity<>(blogPost,HttpStatus.CREATED);
             }
             // Return BlogPost
             return new ResponseEntity<>(blogPost.getBlogPostReturn(),HttpStatus.OK);
@@ -304,29 +393,21 @@ public class BlogPostController {
     @PreAuthorize("hasRole('ROLE_OWNER') or hasRole('ROLE_ADMIN') or hasRole('ROLE_WRITER') or hasRole('ROLE_USER')")
 //    @RolesAllowed({"ROLE_OWNER","ROLE_ADMIN","ROLE_WRITER","ROLE_USER"})
     public ResponseEntity<String> likeBlogPost(@PathVariable String blogId, @RequestHeader(HttpHeaders.AUTHORIZATION) String bearerToken){
-        BlogPost blogPost = blogPostService.getBlogPostWithBlogId(blogId);
-        if(blogPost == null) return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
-
         //Check if token is still valid
-        String jwtString ;
+        VerifiedToken jwtToken;
         try {
-            jwtString=jwtService.getJWTFromBearerToken(bearerToken);
+            jwtToken=jwtService.getVerifiedToken(bearerToken);
         }catch (JwtTokenException e){
             return new ResponseEntity<>(e.getMessage(),HttpStatus.UNAUTHORIZED);
         }
 
-        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtString));
+        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtToken));
         if(requestUser == null)  return new ResponseEntity<>("User Not Found",HttpStatus.NOT_FOUND);
         String userId = requestUser.getUserId();
 
-        if(blogPost.getLikes().contains(userId)){
-            blogPost.getLikes().remove(userId);
-            blogPostService.updateBlogPost(blogPost);
-            return new ResponseEntity<>("UNLIKED",HttpStatus.OK);
-        }
-        blogPost.getLikes().add(userId);
-        blogPostService.updateBlogPost(blogPost);
-        return new ResponseEntity<>("LIKED",HttpStatus.OK);
+        Boolean liked = blogPostService.toggleBlogPostLike(blogId, userId);
+        if(liked == null) return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
+        return new ResponseEntity<>(liked?"LIKED":"UNLIKED",HttpStatus.OK);
     }
 
     @PutMapping("/comment/like/{blogId}/{commentId}")
@@ -338,29 +419,20 @@ public class BlogPostController {
         ){
 
         //Check if token is still valid
-        String jwtString ;
+        VerifiedToken jwtToken;
         try {
-            jwtString=jwtService.getJWTFromBearerToken(bearerToken);
+            jwtToken=jwtService.getVerifiedToken(bearerToken);
         }catch (JwtTokenException e){
             return new ResponseEntity<>(e.getMessage(),HttpStatus.UNAUTHORIZED);
         }
 
-        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtString));
+        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtToken));
         if(requestUser == null)  return new ResponseEntity<>("User Not Found",HttpStatus.NOT_FOUND);
         String userId = requestUser.getUserId();
 
-        BlogPost blogPost = blogPostService.getBlogPostWithBlogId(blogId);
-        if(blogPost==null)return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
-        var blogPostComment = blogPost.findCommentById(commentId);
-        if(blogPostComment.isEmpty())return new ResponseEntity<>("Comment Not Found",HttpStatus.NOT_FOUND);
-        if(blogPostComment.get().getLikes().contains(userId)){
-            blogPostComment.get().getLikes().remove(userId);
-            blogPostService.updateBlogPost(blogPost);
-            return new ResponseEntity<>("UNLIKED",HttpStatus.OK);
-        }
-        blogPostComment.get().getLikes().add(userId);
-        blogPostService.updateBlogPost(blogPost);
-        return new ResponseEntity<>("LIKED",HttpStatus.OK);
+        Boolean liked = blogPostService.toggleBlogPostCommentLike(blogId, commentId, userId);
+        if(liked == null)return new ResponseEntity<>("Comment Not Found",HttpStatus.NOT_FOUND);
+        return new ResponseEntity<>(liked?"LIKED":"UNLIKED",HttpStatus.OK);
     }
 
     @PutMapping("/delete/post")
@@ -371,14 +443,14 @@ public class BlogPostController {
             return new ResponseEntity<>(null,HttpStatus.BAD_REQUEST);
         }
         //Check if token is still valid
-        String jwtString ;
+        VerifiedToken jwtToken;
         try {
-            jwtString=jwtService.getJWTFromBearerToken(bearerToken);
+            jwtToken=jwtService.getVerifiedToken(bearerToken);
         }catch (JwtTokenException e){
             return new ResponseEntity<>(null,HttpStatus.UNAUTHORIZED);
         }
 
-        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtString));
+        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtToken));
         if(requestUser == null)  return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
 
 
@@ -404,14 +476,14 @@ public class BlogPostController {
     public ResponseEntity<BlogPostReturn> restoreDeletedBlogPost(@RequestBody Map<String,Object> payload, @RequestHeader(HttpHeaders.AUTHORIZATION) String bearerToken){
         if(!payload.containsKey("blogId")) return new ResponseEntity<>(null,HttpStatus.BAD_REQUEST);
 
-        String jwtString;
+        VerifiedToken jwtToken;
         try{
-            jwtString=jwtService.getJWTFromBearerToken(bearerToken);
+            jwtToken=jwtService.getVerifiedToken(bearerToken);
         }catch (JwtTokenException e){
             return new ResponseEntity<>(null,HttpStatus.UNAUTHORIZED);
         }
 
-        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtString));
+        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtToken));
         if(requestUser == null) return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
 
         BlogPost blogPost = blogPostService.getBlogPostWithBlogId(payload.get("blogId").toString());
@@ -432,14 +504,14 @@ public class BlogPostController {
         }
 
         //Check if token is still valid
-        String jwtString ;
+        VerifiedToken jwtToken;
         try {
-            jwtString=jwtService.getJWTFromBearerToken(bearerToken);
+            jwtToken=jwtService.getVerifiedToken(bearerToken);
         }catch (JwtTokenException e){
             return new ResponseEntity<>(null,HttpStatus.UNAUTHORIZED);
         }
 
-        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtString));
+        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtToken));
         if(requestUser == null)  return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
 
         BlogPost blogPost = blogPostService.getBlogPostWithBlogId(payload.get("blogId").toString());
@@ -461,7 +533,7 @@ public class BlogPostController {
         )
             return new ResponseEntity<>(null,HttpStatus.UNAUTHORIZED);
 
-        BlogPostComment deleted = blogPostService.flagAsDeleteBlogPostComment(blogPostComment);
+        BlogPostComment deleted = blogPostService.flagAsDeleteBlogPostComment(blogPost, blogPostComment);
         if(deleted == null){
             return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
         }
@@ -476,14 +548,14 @@ public class BlogPostController {
     public ResponseEntity<BlogPostCommentReturn> restoreBlogPostComment(@RequestBody Map<String,Object> payload,@RequestHeader(HttpHeaders.AUTHORIZATION) String bearerToken){
         if(!payload.containsKey("blogId") || !payload.containsKey("commentId")) return new ResponseEntity<>(null,HttpStatus.BAD_REQUEST);
 
-        String jwtString;
+        VerifiedToken jwtToken;
         try{
-            jwtString=jwtService.getJWTFromBearerToken(bearerToken);
+            jwtToken=jwtService.getVerifiedToken(bearerToken);
         }catch (JwtTokenException e){
             return new ResponseEntity<>(null,HttpStatus.UNAUTHORIZED);
         }
 
-        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtString));
+        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtToken));
         if(requestUser == null) return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
 
         BlogPost blogPost = blogPostService.getBlogPostWithBlogId(payload.get("blogId").toString());
@@ -496,7 +568,7 @@ public class BlogPostController {
         if(!requestUser.hasRole("ROLE_OWNER") && !requestUser.hasRole("ROLE_ADMIN") && !blogPostComment.getAuthor().equals(requestUser.getUsername()))
             return new ResponseEntity<>(null,HttpStatus.UNAUTHORIZED);
 
-        return new ResponseEntity<>(blogPostService.restoreBlogPostComment(blogPostComment).toBlogPostCommentReturn(),HttpStatus.OK);
+        return new ResponseEntity<>(blogPostService.restoreBlogPostComment(blogPost, blogPostComment).toBlogPostCommentReturn(),HttpStatus.OK);
     }
     //Delete Requests
 
@@ -510,14 +582,14 @@ public class BlogPostController {
             return new ResponseEntity<>(null,HttpStatus.BAD_REQUEST);
         }
         //Check if token is still valid
-        String jwtString ;
+        VerifiedToken jwtToken;
         try {
-            jwtString=jwtService.getJWTFromBearerToken(bearerToken);
+            jwtToken=jwtService.getVerifiedToken(bearerToken);
         }catch (JwtTokenException e){
             return new ResponseEntity<>(null,HttpStatus.UNAUTHORIZED);
         }
 
-        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtString));
+        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtToken));
         if(requestUser == null)  return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
 
 
@@ -546,14 +618,14 @@ public class BlogPostController {
         }
 
         //Check if token is still valid
-        String jwtString ;
+        VerifiedToken jwtToken;
         try {
-            jwtString=jwtService.getJWTFromBearerToken(bearerToken);
+            jwtToken=jwtService.getVerifiedToken(bearerToken);
         }catch (JwtTokenException e){
             return new ResponseEntity<>(null,HttpStatus.UNAUTHORIZED);
         }
 
-        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtString));
+        User requestUser = userService.findUserByUsername(jwtService.getUsernameFromAccessToken(jwtToken));
         if(requestUser == null)  return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
 
         BlogPost blogPost = blogPostService.getBlogPostWithBlogId(payload.get("blogId").toString());
@@ -575,12 +647,24 @@ public class BlogPostController {
         )
             return new ResponseEntity<>(null,HttpStatus.UNAUTHORIZED);
 
-        BlogPostComment deleted = blogPostService.removeBlogPostCommentFromDB(blogPostComment);
+        BlogPostComment deleted = blogPostService.removeBlogPostCommentFromDB(blogPost, blogPostComment);
         if(deleted == null){
             return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
         }
         return new ResponseEntity<>(deleted.toBlogPostCommentReturn(),HttpStatus.OK);
     }
+
+    private static void writeJson(HttpServletResponse response, int length){
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setContentLength(length);
+    }
+
+    // Every listing is built from the posts collection, so one collection version covers them all
+    private boolean listingNotModified(WebRequest webRequest){
+        var version = blogPostService.getBlogPostsVersion();
+        return webRequest.checkNotModified(version.eTag(), version.lastModifiedMillis());
+    }
 }
 
 record AuthorDetails(String username,String userId,boolean disabled,boolean banned,String highestRole){};
@@ -0,0 +1,90 @@
+package com.stb.blog.controllers;
+
+import com.stb.blog.services.BlogPostCache;
+import com.stb.blog.services.PasswordHashingService;
+import com.stb.blog.services.PostJsonCache;
+import com.stb.blog.services.UserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("/api/blog/metrics")
+public class MetricsController {
+    @Autowired
+    BlogPostCache blogPostCache;
+    @Autowired
+    UserService userService;
+    @Autowired
+    PasswordHashingService passwordHashingService;
+    @Autowired
+    PostJsonCache postJsonCache;
+
+    @GetMapping("/cache/posts")
+    @PreAuthorize("hasRole('ROLE_OWNER') or hasRole('ROLE_ADMIN')")
+    public ResponseEntity<CacheMetrics> getPostCacheMetrics(){
+        var stats = blogPostCache.stats();
+        return new ResponseEntity<>(new CacheMetrics(
+                stats.hitCount(),
+                stats.missCount(),
+                stats.hitRate(),
+                stats.evictionCount(),
+                stats.evictionWeight(),
+                blogPostCache.estimatedSize(),
+                blogPostCache.weightedSize(),
+                blogPostCache.maximumWeight(),
+                stats.averageLoadPenalty() / 1_000_000.0
+        ), HttpStatus.OK);
+    }
+
+    @GetMapping("/cache/users")
+    @PreAuthorize("hasRole('ROLE_OWNER') or hasRole('ROLE_ADMIN')")
+    public ResponseEntity<CacheMetrics> getUserCacheMetrics(){
+        var stats = userService.userCacheStats();
+        long size = userService.userCacheSize();
+        return new ResponseEntity<>(new CacheMetrics(
+                stats.hitCount(),
+                stats.missCount(),
+                stats.hitRate(),
+                stats.evictionCount(),
+                stats.evictionWeight(),
+                size,
+                size,
+                userService.userCacheMaxSize(),
+                stats.averageLoadPenalty() / 1_000_000.0
+        ), HttpStatus.OK);
+    }
+
+    @GetMapping("/cache/post-json")
+    @PreAuthorize("hasRole('ROLE_OWNER') or hasRole('ROLE_ADMIN')")
+    public ResponseEntity<PostJsonCache.Metrics> getPostJsonCacheMetrics(){
+        return new ResponseEntity<>(postJsonCache.metrics(), HttpStatus.OK);
+    }
+
+    @GetMapping("/password-hashing")
+    @PreAuthorize("hasRole('ROLE_OWNER') or hasRole('ROLE_ADMIN')")
+    public ResponseEntity<HashingMetrics> getPasswordHashingMetrics(){
+        return new ResponseEntity<>(new HashingMetrics(
+                passwordHashingService.poolSize(),
+                passwordHashingService.activeCount(),
+                passwordHashingService.queueDepth(),
+                passwordHashingService.queueCapacity(),
+                passwordHashingService.completedCount(),
+                passwordHashingService.rejectedCount(),
+                passwordHashingService.averageHashMillis(),
+                passwordHashingService.maxHashMillis(),
+                passwordHashingService.averageWaitMillis(),
+                passwordHashingService.strength()
+        ), HttpStatus.OK);
+    }
+}
+
+record CacheMetrics(long hits, long misses, double hitRatio, long evictions, long evictedWeight,
+                    long entries, long weightedSize, long maximumWeight, double averageLoadMillis){}
+
+record HashingMetrics(int threads, int active, int queued, int queueCapacity, long completed, long rejected,
+                      double averageHashMillis, double maxHashMillis, double averageWaitMillis, int strength){}
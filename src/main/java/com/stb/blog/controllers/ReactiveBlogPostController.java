@@ -0,0 +1,42 @@
+package com.stb.blog.controllers;
+
+import com.stb.blog.models.BlogPostReturn;
+import com.stb.blog.models.BlogPostSummary;
+import com.stb.blog.services.ReactiveBlogPostService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reactive reads of the busiest GETs of {@link BlogPostController}. Listings are written as
+ * newline delimited JSON one summary at a time while the Mongo cursor is still being read.
+ */
+@RestController
+@RequestMapping("/api/blog/reactive/posts")
+public class ReactiveBlogPostController {
+
+    @Autowired
+    ReactiveBlogPostService reactiveBlogPostService;
+
+    @GetMapping("/post/{blogId}")
+    public Mono<ResponseEntity<BlogPostReturn>> getBlogPostById(@PathVariable String blogId, @RequestParam(defaultValue = "true") boolean comments){
+        return reactiveBlogPostService.getBlogPostWithBlogId(blogId, comments)
+                .map(blogPost -> new ResponseEntity<>(comments?blogPost.getBlogPostReturn():blogPost.getBlogPostReturnWithoutComments(),HttpStatus.OK))
+                .defaultIfEmpty(new ResponseEntity<>(HttpStatus.NOT_FOUND));
+    }
+
+    @GetMapping(value = "/latest/{num}", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<Flux<BlogPostSummary>> getLatestNBlogPost(@PathVariable int num){
+        if(num < 1) return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        return new ResponseEntity<>(reactiveBlogPostService.getLatestBlogPostSummaries(num),HttpStatus.OK);
+    }
+
+    @GetMapping(value = "/search/title/{titleSnip}", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<BlogPostSummary> getBlogPostsWithTitle(@PathVariable String titleSnip){
+        return reactiveBlogPostService.getAllBlogPostsWithTitleContaining(titleSnip);
+    }
+}
@@ -6,15 +6,18 @@ import com.stb.blog.models.TokenReturn;
 import com.stb.blog.models.User;
 import com.stb.blog.models.UserReturn;
 import com.stb.blog.services.JwtService;
+import com.stb.blog.services.PasswordHashingService;
+import com.stb.blog.services.RevocationRegistry;
 import com.stb.blog.services.UserService;
 import jakarta.annotation.security.DeclareRoles;
 import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.web.bind.annotation.*;
 
 
@@ -22,6 +25,10 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 
 @RestController
@@ -31,11 +38,19 @@ public class UserController{
     @Autowired
     UserService userService;
     @Autowired
-    PasswordEncoder passwordEncoder;
+    PasswordHashingService passwordHashingService;
 
     @Autowired
     JwtService jwtService;
 
+    @Autowired
+    RevocationRegistry revocationRegistry;
+
+    // Runs what follows a hash, token signing and Mongo writes, so the hashing pool only ever hashes
+    @Autowired
+    @Qualifier(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME)
+    Executor taskExecutor;
+
 
 
     @GetMapping("/exists/{username}")
@@ -61,9 +76,9 @@ public class UserController{
 
     @PostMapping("/refresh")
     public ResponseEntity<LoginReturn> refreshTokens(@RequestHeader String token){
-        if(!jwtService.validateRefreshToken(token))return new ResponseEntity<>(null,HttpStatus.UNAUTHORIZED);
-        String username = jwtService.getUsernameFromRefreshToken(token);
-        User user = userService.findUserByUsername(username);
+        var verifiedToken = jwtService.readRefreshToken(token);
+        if(verifiedToken == null)return new ResponseEntity<>(null,HttpStatus.UNAUTHORIZED);
+        User user = userService.findUserByUsername(verifiedToken.username());
         TokenReturn newAccessToken;
         TokenReturn newRefreshToken;
         try{
@@ -130,29 +145,31 @@ public class UserController{
     }
 
     @PostMapping("/login")
-    public ResponseEntity<LoginReturn> login(@RequestBody Map<String,Object> payload){
+    public CompletableFuture<ResponseEntity<LoginReturn>> login(@RequestBody Map<String,Object> payload){
         if(!payload.containsKey("username") || !payload.containsKey("password")){
-            return new ResponseEntity<>(null,HttpStatus.BAD_REQUEST);
+            return CompletableFuture.completedFuture(new ResponseEntity<>(null,HttpStatus.BAD_REQUEST));
         }
         String username = payload.get("username").toString();
         String password = payload.get("password").toString();
 
-        var user = userService.findUserByUsernameAndPassword(username,password);
-        if(user == null) return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
-        TokenReturn accessToken;
-        TokenReturn refreshTokenReturn;
-        try{
-            accessToken=jwtService.generateAccessToken(user);
-            refreshTokenReturn= jwtService.generateRefreshToken(user);
-        } catch(InvalidUserCredentialsException e){
-            return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
-        }
-        String refreshToken = refreshTokenReturn.getToken();
-        updateUserLastAccess(user);
-        HttpHeaders resHeaders = new HttpHeaders();
-        resHeaders.set("token",refreshToken);
-        resHeaders.set("tokenExpires",refreshTokenReturn.getExpires().toString());
-        return ResponseEntity.ok().headers(resHeaders).body(new LoginReturn(accessToken,user.getUserReturn()) );
+        // The password check runs on the hashing pool, the servlet thread is released meanwhile
+        return userService.findUserByUsernameAndPassword(username,password).thenApplyAsync(user -> {
+            if(user == null) return new ResponseEntity<LoginReturn>(HttpStatus.NOT_FOUND);
+            TokenReturn accessToken;
+            TokenReturn refreshTokenReturn;
+            try{
+                accessToken=jwtService.generateAccessToken(user);
+                refreshTokenReturn= jwtService.generateRefreshToken(user);
+            } catch(InvalidUserCredentialsException e){
+                return new ResponseEntity<LoginReturn>(HttpStatus.NOT_FOUND);
+            }
+            String refreshToken = refreshTokenReturn.getToken();
+            updateUserLastAccess(user);
+            HttpHeaders resHeaders = new HttpHeaders();
+            resHeaders.set("token",refreshToken);
+            resHeaders.set("tokenExpires",refreshTokenReturn.getExpires().toString());
+            return ResponseEntity.ok().headers(resHeaders).body(new LoginReturn(accessToken,user.getUserReturn()) );
+        }, taskExecutor).exceptionally(UserController::hashingUnavailable);
     }
 
     @PostMapping("/login-with-token")
@@ -177,38 +194,39 @@ public class UserController{
 
     //TODO UPDATE
     @PostMapping("/register")
-    public ResponseEntity<LoginReturn> registerUser(@RequestBody Map<String,Object> payload){
+    public CompletableFuture<ResponseEntity<LoginReturn>> registerUser(@RequestBody Map<String,Object> payload){
         Date dateNow = new Date();
         if(!payload.containsKey("username") || !payload.containsKey("password")){
-            return new ResponseEntity<>(null,HttpStatus.BAD_REQUEST);
+            return CompletableFuture.completedFuture(new ResponseEntity<>(null,HttpStatus.BAD_REQUEST));
         }
         String username = payload.get("username").toString();
         String password = payload.get("password").toString();
 
         var userWithUsername = userService.findUserByUsername(username);
         if(userWithUsername != null){
-            return new ResponseEntity<>(null,HttpStatus.CONFLICT);
+            return CompletableFuture.completedFuture(new ResponseEntity<>(null,HttpStatus.CONFLICT));
         }
 
-        User user = new User();
-        user.setUserId(new ObjectId().toHexString());
-        user.setLastAccess(dateNow);
-        user.setCreatedOn(dateNow);
-        user.setRoles(new HashSet<>());
-        user.addRole("ROLE_USER");
-        user.setUsername(username);
-        user.setPassword(passwordEncoder.encode(password));
-        TokenReturn jwtString;
-        try{
-            jwtString=jwtService.generateAccessToken(user);
-        }catch(InvalidUserCredentialsException e){
-            return new ResponseEntity<>(null,HttpStatus.BAD_REQUEST);
-        }
-        userService.saveNewUser(user);
-        return new ResponseEntity<>(new LoginReturn(jwtString,user.getUserReturn()),HttpStatus.CREATED);
+        return passwordHashingService.encode(password).thenApplyAsync(encoded -> {
+            User user = new User();
+            user.setUserId(new ObjectId().toHexString());
+            user.setLastAccess(dateNow);
+            user.setCreatedOn(dateNow);
+            user.setRoles(new HashSet<>());
+            user.addRole("ROLE_USER");
+            user.setUsername(username);
+            user.setPassword(encoded);
+            TokenReturn jwtString;
+            try{
+                jwtString=jwtService.generateAccessToken(user);
+            }catch(InvalidUserCredentialsException e){
+                return new ResponseEntity<LoginReturn>(HttpStatus.BAD_REQUEST);
+            }
+            userService.saveNewUser(user);
+            return new ResponseEntity<>(new LoginReturn(jwtString,user.getUserReturn()),HttpStatus.CREATED);
+        }, taskExecutor).exceptionally(UserController::hashingUnavailable);
     }
 
-
     @PutMapping("/add-auth/admin")
     @PreAuthorize("hasRole('ROLE_OWNER') or hasRole('ROLE_ADMIN')")
     //@RolesAllowed({"ROLE_OWNER","ROLE_ADMIN"})
@@ -278,6 +296,8 @@ public class UserController{
 
         userToChange.removeRole(newRole);
         var saved = userService.saveNewUser(userToChange);
+        // Tokens still carry the removed role
+        revocationRegistry.revoke(saved.getUsername());
         return new ResponseEntity<>(saved.getUserReturn(),HttpStatus.OK);
     }
 
@@ -296,6 +316,8 @@ public class UserController{
 
         userToChange.removeRole(newRole);
         var saved = userService.saveNewUser(userToChange);
+        // Tokens still carry the removed role
+        revocationRegistry.revoke(saved.getUsername());
         return new ResponseEntity<>(saved.getUserReturn(),HttpStatus.OK);
     }
 
@@ -313,6 +335,8 @@ public class UserController{
 
         userToChange.removeRole(newRole);
         var saved = userService.saveNewUser(userToChange);
+        // Tokens still carry the removed role
+        revocationRegistry.revoke(saved.getUsername());
         return new ResponseEntity<>(saved.getUserReturn(),HttpStatus.OK);
     }
 
@@ -323,6 +347,7 @@ public class UserController{
         if(userToBan == null) return  new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
         userToBan.ban();
         var saved = userService.saveNewUser(userToBan);
+        revocationRegistry.block(saved.getUsername());
         return new ResponseEntity<>(saved.getUserReturn(),HttpStatus.OK);
     }
 
@@ -333,6 +358,7 @@ public class UserController{
         if(userToUnban == null) return  new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
         userToUnban.unban();
         var saved = userService.saveNewUser(userToUnban);
+        if(!saved.isDisabled()) revocationRegistry.unblock(saved.getUsername());
         return new ResponseEntity<>(saved.getUserReturn(),HttpStatus.OK);
     }
 
@@ -344,6 +370,7 @@ public class UserController{
         user.disable();
         var saved = userService.saveNewUser(user);
         if(saved == null)return  new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
+        revocationRegistry.block(saved.getUsername());
         return new ResponseEntity<>(saved.getUserReturn(),HttpStatus.OK);
     }
 
@@ -355,6 +382,7 @@ public class UserController{
         user.enable();
         var saved = userService.saveNewUser(user);
         if(saved == null)return  new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
+        if(!saved.isBanned()) revocationRegistry.unblock(saved.getUsername());
         return new ResponseEntity<>(saved.getUserReturn(),HttpStatus.OK);
     }
 
@@ -365,12 +393,22 @@ public class UserController{
         if(user == null) return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
         var deleted = userService.deleteUser(user);
         if(deleted == null)return new ResponseEntity<>(null,HttpStatus.NOT_FOUND);
+        revocationRegistry.block(user.getUsername());
         return new ResponseEntity<>(user.getUserReturn(), HttpStatus.OK);
     }
 
 
 
 
+    // Hashing pool saturated, the client should retry shortly
+    private static ResponseEntity<LoginReturn> hashingUnavailable(Throwable e){
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if(!(cause instanceof RejectedExecutionException)){
+            throw e instanceof CompletionException completion ? completion : new CompletionException(e);
+        }
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
+    }
+
     private User updateUserLastAccess(User user){
         Date dateNow = new Date();
         user.setLastAccess(dateNow);
@@ -1,32 +1,129 @@
 package com.stb.blog.models;
 
-import lombok.AllArgsConstructor;
-import lombok.Data;
-import lombok.NoArgsConstructor;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.*;
 import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
 
 import java.util.*;
 
 @Document("Posts")
-@AllArgsConstructor
+// Auto index creation is off, these are only declarations until IndexBootstrapService creates them at startup
+// Keyset order of the post listing
+@CompoundIndex(name = "createdOn_id", def = "{'createdOn': -1, '_id': -1}")
+// Top-N of /latest, partial so it holds only the posts that aren't deleted, which is all that listing reads
+@CompoundIndex(name = "deleted_createdOn_id", def = "{'deleted': 1, 'createdOn': -1, '_id': -1}", partialFilter = "{'deleted': false}")
 @NoArgsConstructor
 @Data
 public class BlogPost {
     private ObjectId id;
+    @Indexed(unique = true)
     private String blogId;
     private String body;
     private Date createdOn;
     private Date lastUpdated;
     private String author;
     private String title;
+    // Comment tree, loaded from the Comments collection and never stored on the post
+    @Transient
     private List<BlogPostComment> comments;
+    // Comments embedded by older versions, moved to the Comments collection when the post is read
+    @JsonIgnore
+    @Field("comments")
+    private List<org.bson.Document> legacyComments;
     private Set<String> likes;
     private boolean deleted;
+    private int topLevelCommentCount;
+    private int totalCommentCount;
+    // Bumped by every change to the post, its comments or likes, lastActivity is when that last happened
+    private long revision;
+    @Indexed
+    private Date lastActivity;
+    // commentId -> comment and commentId -> parent (absent for top level comments), built on first lookup
+    @Transient
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private Map<String, BlogPostComment> commentIndex;
+    @Transient
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private Map<String, BlogPostComment> parentIndex;
+
+    public BlogPost(ObjectId id, String blogId, String body, Date createdOn, Date lastUpdated, String author, String title,
+                    List<BlogPostComment> comments, List<org.bson.Document> legacyComments, Set<String> likes, boolean deleted,
+                    int topLevelCommentCount, int totalCommentCount){
+        this.id = id;
+        this.blogId = blogId;
+        this.body = body;
+        this.createdOn = createdOn;
+        this.lastUpdated = lastUpdated;
+        this.author = author;
+        this.title = title;
+        this.comments = comments;
+        this.legacyComments = legacyComments;
+        this.likes = likes;
+        this.deleted = deleted;
+        this.topLevelCommentCount = topLevelCommentCount;
+        this.totalCommentCount = totalCommentCount;
+    }
+
+    /**
+     * Copy of the post and its comment tree that can be changed without affecting this one.
+     */
+    public BlogPost copy(){
+        List<BlogPostComment> copiedComments = null;
+        if(comments != null){
+            copiedComments = new ArrayList<>(comments.size());
+            Deque<Map.Entry<BlogPostComment, List<BlogPostComment>>> stack = new ArrayDeque<>();
+            // Siblings are pushed last first so they are popped, and appended, in their original order
+            for(int i = comments.size() - 1; i >= 0; i--) stack.push(new AbstractMap.SimpleEntry<>(comments.get(i), copiedComments));
+            while(!stack.isEmpty()){
+                var entry = stack.pop();
+                var copied = entry.getKey().copyWithoutReplies();
+                entry.getValue().add(copied);
+                var replies = entry.getKey().getReplies();
+                if(replies == null) continue;
+                for(int i = replies.size() - 1; i >= 0; i--) stack.push(new AbstractMap.SimpleEntry<>(replies.get(i), copied.getReplies()));
+            }
+        }
+        BlogPost copy = new BlogPost(
+                id,
+                blogId,
+                body,
+                createdOn,
+                lastUpdated,
+                author,
+                title,
+                copiedComments,
+                legacyComments,
+                likes == null ? null : new HashSet<>(likes),
+                deleted,
+                topLevelCommentCount,
+                totalCommentCount
+        );
+        copy.revision = revision;
+        copy.lastActivity = lastActivity;
+        return copy;
+    }
+
+    public void setComments(List<BlogPostComment> comments){
+        this.comments = comments;
+        commentIndex = null;
+        parentIndex = null;
+    }
 
     public BlogPostReturn getBlogPostReturn(){
-        List<BlogPostCommentReturn> returns=new ArrayList<>();
-        for(var comment : comments)returns.add(comment.toBlogPostCommentReturn());
+        var rendered = BlogPostCommentRenderer.render(comments);
         return new BlogPostReturn(
                 blogId,
                 title,
@@ -34,34 +131,112 @@ public class BlogPost {
                 author,
                 createdOn,
                 lastUpdated,
-                returns,
+                rendered.comments(),
                 likes,
                 deleted,
-                this.countTopLevelReplies(),
-                this.countTotalReplies()
+                rendered.topLevelCount(),
+                rendered.totalCount()
         );
     }
 
-    public int countTopLevelReplies(){
-        var count = comments.size();
-        return count;
+    /**
+     * Same as {@link #getBlogPostReturn()} without the comment tree, comments are fetched separately in pages.
+     */
+    public BlogPostReturn getBlogPostReturnWithoutComments(){
+        return new BlogPostReturn(
+                blogId,
+                title,
+                body,
+                author,
+                createdOn,
+                lastUpdated,
+                null,
+                likes,
+                deleted,
+                topLevelCommentCount,
+                totalCommentCount
+        );
     }
 
-    public int countTotalReplies(){
+    public int countTopLevelReplies(){
+        if(comments == null) return 0;
         var count = comments.size();
-        for(var comment:comments)count+=comment.countReplies();
         return count;
     }
 
     public Optional<BlogPostComment> findCommentById(String searchId){
-        for(var comment:comments){
-            var foundComment = comment.findComment(searchId);
-            if(foundComment.isPresent())return foundComment;
-        }
-        return Optional.empty();
+        if(searchId == null) return Optional.empty();
+        return Optional.ofNullable(commentIndex().get(searchId));
+    }
+
+    /**
+     * Parent of a reply, empty for top level comments and comments not in the post.
+     */
+    public Optional<BlogPostComment> findParentOf(String commentId){
+        if(commentId == null) return Optional.empty();
+        return Optional.ofNullable(parentIndex().get(commentId));
     }
 
     public void addComment(BlogPostComment blogPostComment){
-        comments.add(blogPostComment);
+        addComment(blogPostComment, null);
+    }
+
+    /**
+     * Adds a comment to the tree, as a reply when a parent is given.
+     */
+    public void addComment(BlogPostComment blogPostComment, BlogPostComment parent){
+        if(comments == null) comments = new ArrayList<>();
+        if(parent == null) comments.add(blogPostComment);
+        else parent.addComment(blogPostComment);
+        if(commentIndex == null) return;
+        indexSubtree(blogPostComment, parent);
+    }
+
+    /**
+     * Takes a comment and its replies out of the tree.
+     * @return The removed comment or empty if it isn't in the post
+     */
+    public Optional<BlogPostComment> removeComment(String commentId){
+        var comment = findCommentById(commentId);
+        if(comment.isEmpty()) return comment;
+        var parent = parentIndex.get(commentId);
+        // By identity, equals would compare whole subtrees
+        var siblings = parent == null ? comments : parent.getReplies();
+        siblings.removeIf(sibling -> sibling == comment.get());
+        Deque<BlogPostComment> stack = new ArrayDeque<>();
+        stack.push(comment.get());
+        while(!stack.isEmpty()){
+            var removed = stack.pop();
+            commentIndex.remove(removed.getCommentId());
+            parentIndex.remove(removed.getCommentId());
+            if(removed.getReplies() != null) removed.getReplies().forEach(stack::push);
+        }
+        return comment;
+    }
+
+    private Map<String, BlogPostComment> commentIndex(){
+        if(commentIndex == null){
+            commentIndex = new HashMap<>();
+            parentIndex = new HashMap<>();
+            if(comments != null) for(var comment : comments) indexSubtree(comment, null);
+        }
+        return commentIndex;
+    }
+
+    private Map<String, BlogPostComment> parentIndex(){
+        commentIndex();
+        return parentIndex;
+    }
+
+    private void indexSubtree(BlogPostComment root, BlogPostComment parent){
+        Deque<Map.Entry<BlogPostComment, BlogPostComment>> stack = new ArrayDeque<>();
+        stack.push(new AbstractMap.SimpleEntry<>(root, parent));
+        while(!stack.isEmpty()){
+            var entry = stack.pop();
+            var comment = entry.getKey();
+            commentIndex.put(comment.getCommentId(), comment);
+            if(entry.getValue() != null) parentIndex.put(comment.getCommentId(), entry.getValue());
+            if(comment.getReplies() != null) for(var reply : comment.getReplies()) stack.push(new AbstractMap.SimpleEntry<>(reply, comment));
+        }
     }
 }
@@ -4,9 +4,16 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.util.*;
 
+@Document("Comments")
+@CompoundIndex(name = "blogId_parent_createdOn_commentId", def = "{'blogId': 1, 'parentCommentId': 1, 'createdOn': 1, 'commentId': 1}")
+@CompoundIndex(name = "blogId_path", def = "{'blogId': 1, 'path': 1}")
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
@@ -18,48 +25,44 @@ public class BlogPostComment {
     private Date createdOn;
     private Date lastUpdated;
     private boolean deleted=false;
+    // Reply tree, assembled when a thread is read and never stored on the comment
+    @Transient
     private List<BlogPostComment> replies;
     private String blogId;
     private String parentCommentId;
+    @Indexed(unique = true)
     private String commentId;
     private Set<String> likes;
+    // Materialized path of the ancestors, "" for top level comments and "<rootId>/<childId>/" further down
+    private String path;
+    private int depth;
+    private int replyCount;
 
-    public BlogPostCommentReturn toBlogPostCommentReturn(){
-        List<BlogPostCommentReturn> commentReturns=new ArrayList<>();
-        for(var bpc : replies) commentReturns.add(bpc.toBlogPostCommentReturn());
-        return new BlogPostCommentReturn(
-                commentId,
-                blogId,
-                parentCommentId,
-                likes,
+    /**
+     * Copy of this comment without its replies, the likes set is copied too.
+     */
+    public BlogPostComment copyWithoutReplies(){
+        return new BlogPostComment(
+                id,
                 title,
                 author,
                 body,
                 createdOn,
                 lastUpdated,
                 deleted,
-                commentReturns,
-                this.replies.size(),
-                this.countReplies()
+                new ArrayList<>(),
+                blogId,
+                parentCommentId,
+                commentId,
+                likes == null ? null : new HashSet<>(likes),
+                path,
+                depth,
+                replyCount
         );
     }
 
-    public int countReplies(){
-        var count= replies.size();
-        for(var reply : replies){
-            count+=reply.countReplies();
-        }
-        return count;
-    }
-
-    public Optional<BlogPostComment> findComment(String searchId){
-        if(searchId==null) return Optional.empty();
-        if(commentId.equals(searchId))return Optional.of(this);
-        for(var reply:replies){
-            var foundComment = reply.findComment(searchId);
-            if(foundComment.isPresent())return foundComment;
-        }
-        return Optional.empty();
+    public BlogPostCommentReturn toBlogPostCommentReturn(){
+        return BlogPostCommentRenderer.render(this);
     }
 
     public void addComment(BlogPostComment comment){
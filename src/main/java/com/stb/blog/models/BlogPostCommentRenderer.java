@@ -0,0 +1,81 @@
+package com.stb.blog.models;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Builds the {@link BlogPostCommentReturn} tree in one post-order pass. Reply counts are summed on the
+ * way back up so every node is visited once, and an explicit stack keeps deep threads off the call stack.
+ */
+public final class BlogPostCommentRenderer {
+    public record Rendered(List<BlogPostCommentReturn> comments, int topLevelCount, int totalCount) {}
+
+    // A comment being rendered, its children are rendered before it
+    private static final class Frame {
+        final BlogPostComment comment;
+        final List<BlogPostComment> replies;
+        final List<BlogPostCommentReturn> rendered;
+        int next = 0;
+        int total = 0;
+
+        Frame(BlogPostComment comment){
+            this.comment = comment;
+            this.replies = comment.getReplies() == null ? List.of() : comment.getReplies();
+            this.rendered = new ArrayList<>(replies.size());
+        }
+    }
+
+    private BlogPostCommentRenderer(){
+    }
+
+    public static Rendered render(List<BlogPostComment> comments){
+        if(comments == null) return new Rendered(new ArrayList<>(), 0, 0);
+        List<BlogPostCommentReturn> rendered = new ArrayList<>(comments.size());
+        int total = 0;
+        for(var comment : comments){
+            var commentReturn = render(comment);
+            rendered.add(commentReturn);
+            total += 1 + commentReturn.getTotalCommentCount();
+        }
+        return new Rendered(rendered, comments.size(), total);
+    }
+
+    public static BlogPostCommentReturn render(BlogPostComment root){
+        Deque<Frame> stack = new ArrayDeque<>();
+        stack.push(new Frame(root));
+        while(true){
+            Frame frame = stack.peek();
+            if(frame.next < frame.replies.size()){
+                stack.push(new Frame(frame.replies.get(frame.next++)));
+                continue;
+            }
+            stack.pop();
+            var commentReturn = toReturn(frame);
+            Frame parent = stack.peek();
+            if(parent == null) return commentReturn;
+            parent.rendered.add(commentReturn);
+            parent.total += 1 + frame.total;
+        }
+    }
+
+    private static BlogPostCommentReturn toReturn(Frame frame){
+        var comment = frame.comment;
+        return new BlogPostCommentReturn(
+                comment.getCommentId(),
+                comment.getBlogId(),
+                comment.getParentCommentId(),
+                comment.getLikes(),
+                comment.getTitle(),
+                comment.getAuthor(),
+                comment.getBody(),
+                comment.getCreatedOn(),
+                comment.getLastUpdated(),
+                comment.isDeleted(),
+                frame.rendered,
+                frame.replies.size(),
+                frame.total
+        );
+    }
+}
@@ -0,0 +1,30 @@
+package com.stb.blog.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BlogPostCommentThreadReturn {
+    private String commentId;
+    private String blogId;
+    private String parentCommentId;
+    private Set<String> likes;
+    private String title;
+    private String author;
+    private String body;
+    private Date createdOn;
+    private Date lastUpdated;
+    private boolean deleted=false;
+    private List<BlogPostCommentThreadReturn> replies;
+    private int replyCount=0;
+    // True when the thread was cut off here, fetch the rest from the replies endpoint with repliesCursor
+    private boolean hasMoreReplies=false;
+    private String repliesCursor;
+}
@@ -0,0 +1,29 @@
+package com.stb.blog.models;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.bson.types.ObjectId;
+
+import java.util.Date;
+
+/**
+ * Read model for post listings, projected in Mongo so bodies, comments and likes never leave the database.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BlogPostSummary {
+    @JsonIgnore
+    private ObjectId id;
+    private String blogId;
+    private String title;
+    private String author;
+    private Date createdOn;
+    private Date lastUpdated;
+    private String excerpt;
+    private int likeCount=0;
+    private int topLevelCommentCount=0;
+    private boolean deleted=false;
+}
@@ -0,0 +1,26 @@
+package com.stb.blog.models;
+
+import java.util.Date;
+
+/**
+ * Version of a post or of the post listings, read without loading the content. Answers conditional GETs.
+ * @param tag Changes whenever the content does
+ * @param lastModified When the content last changed or null if that isn't known exactly
+ */
+public record ContentVersion(String tag, Date lastModified) {
+
+    public String eTag(){
+        return "\"" + tag + "\"";
+    }
+
+    /**
+     * ETag of another representation of the same content.
+     */
+    public String eTag(String variant){
+        return "\"" + tag + "-" + variant + "\"";
+    }
+
+    public long lastModifiedMillis(){
+        return lastModified == null ? -1 : lastModified.getTime();
+    }
+}
@@ -0,0 +1,16 @@
+package com.stb.blog.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CursorPage<T> {
+    private List<T> items;
+    // Encoded cursor for the next page, null when there are no more items
+    private String next;
+}
@@ -0,0 +1,18 @@
+package com.stb.blog.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SearchHit {
+    private String blogId;
+    private String title;
+    private String author;
+    private Date createdOn;
+    private double score;
+}
@@ -0,0 +1,18 @@
+package com.stb.blog.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SearchResults {
+    private String query;
+    private int total;
+    private int page;
+    private int size;
+    private List<SearchHit> hits;
+}
@@ -3,6 +3,7 @@ package com.stb.blog.models;
 import lombok.*;
 import org.bson.types.ObjectId;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
@@ -19,7 +20,9 @@ import java.util.*;
 public class User implements UserDetails {
     @Id
     private ObjectId id;
+    @Indexed
     private String userId;
+    @Indexed(unique = true)
     private String username;
     private String password;
     private Date createdOn;
@@ -76,6 +79,14 @@ public class User implements UserDetails {
         return false;
     }
 
+    /**
+     * Copy that can be changed without affecting this user, roles are copied into a new set.
+     */
+    public User copy(){
+        return new User(id, userId, username, password, createdOn, lastAccess,
+                roles == null ? null : new HashSet<>(roles), isBanned, isDisabled);
+    }
+
     public UserReturn getUserReturn(){
         Set<String> roleList=new HashSet<>();
         for(var role : roles) roleList.add(role.getName());
@@ -0,0 +1,20 @@
+package com.stb.blog.models;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A JWT whose signature, expiry and user have been checked. Built once per request and shared from there.
+ * {@code fromClaims} means the user was checked against the revocation registry only and its roles come from the token.
+ */
+public record VerifiedToken(String token, Type type, String username, List<String> roles, Date issuedAt, Date expiration, boolean fromClaims) {
+    public enum Type { ACCESS, REFRESH }
+
+    public VerifiedToken {
+        roles = roles == null ? List.of() : List.copyOf(roles);
+    }
+
+    public boolean isAccessToken(){
+        return type == Type.ACCESS;
+    }
+}
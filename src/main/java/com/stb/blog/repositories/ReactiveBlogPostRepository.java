@@ -0,0 +1,18 @@
+package com.stb.blog.repositories;
+
+import com.stb.blog.models.BlogPost;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+/**
+ * Non-blocking twin of {@link BlogPostRepository} for the reactive read API.
+ */
+@Repository
+public interface ReactiveBlogPostRepository extends ReactiveMongoRepository<BlogPost,String> {
+
+    Mono<BlogPost> getBlogPostById(ObjectId id);
+
+    Mono<BlogPost> getBlogPostByBlogId(String blogId);
+}
@@ -0,0 +1,483 @@
+package com.stb.blog.search;
+
+import com.stb.blog.models.BlogPost;
+import com.stb.blog.models.BlogPostComment;
+import com.stb.blog.models.SearchHit;
+import com.stb.blog.models.SearchResults;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Embedded full text index over post titles, bodies and comment bodies, ranked with BM25.
+ * <p>
+ * New and changed posts go into an in memory write buffer. The buffer is sealed into an
+ * immutable segment and written to disk every flush interval, once it holds flush-threshold
+ * documents and on shutdown. Newer segments supersede older entries for the same blogId and
+ * removals are stored as tombstones, so on restart the segments are replayed in generation
+ * order and only posts whose lastUpdated moved while the app was down get re-indexed.
+ * Comment edits made while the app was down do not change lastUpdated and are not picked up
+ * until the post is indexed again.
+ */
+@Component
+public class FullTextIndex {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    // Gap between fields so phrases never match across the title, body and comments
+    private static final int FIELD_GAP = 100;
+    private static final Pattern PHRASE = Pattern.compile("\"([^\"]*)\"");
+    private static final int REINDEX_BATCH = 100;
+
+    private record DocRef(Segment segment, int ord){}
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${search.fulltext.directory:search-index}")
+    private String directory;
+
+    @Value("${search.fulltext.flush-threshold:500}")
+    private int flushThreshold;
+
+    @Value("${search.fulltext.max-segments:8}")
+    private int maxSegments;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    // Sealed segments, oldest generation first
+    private final List<Segment> segments = new ArrayList<>();
+    // blogId -> newest entry for the post, which may be a tombstone
+    private final Map<String, DocRef> latest = new HashMap<>();
+    private Segment buffer = new Segment(1);
+    private long nextGeneration = 2;
+    private long liveDocs = 0;
+    private long totalLength = 0;
+    private volatile boolean ready = false;
+    // Set once the segments on disk are loaded, flushing earlier could reuse the generation of a file on disk
+    private volatile boolean loaded = false;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void openOnStartup(){
+        Thread opener = new Thread(this::open, "fulltext-index-open");
+        opener.setDaemon(true);
+        opener.start();
+    }
+
+    public boolean isReady(){
+        return ready;
+    }
+
+    /**
+     * Loads the segments on disk then brings them up to date with the Posts collection.
+     */
+    public void open(){
+        try {
+            load();
+        }catch (IOException e){
+            System.out.println("Full text index on disk is unreadable, rebuilding: " + e.getMessage());
+            reset();
+        }
+        loaded = true;
+        try {
+            catchUp();
+            flush();
+            ready = true;
+        }catch (RuntimeException e){
+            System.out.println("Full text index catch up failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds or re-indexes a post. Posts flagged as deleted are removed from the index.
+     */
+    public void index(BlogPost blogPost){
+        if(blogPost == null || blogPost.getBlogId() == null) return;
+        if(blogPost.isDeleted()){
+            remove(blogPost.getBlogId());
+            return;
+        }
+        Map<String, List<Integer>> collected = new HashMap<>();
+        int position = addField(collected, 0, blogPost.getTitle());
+        position = addField(collected, position + FIELD_GAP, blogPost.getBody());
+        if(blogPost.getComments() != null){
+            Deque<BlogPostComment> stack = new ArrayDeque<>(blogPost.getComments());
+            while(!stack.isEmpty()){
+                var comment = stack.pop();
+                if(!comment.isDeleted()) position = addField(collected, position + FIELD_GAP, comment.getBody());
+                if(comment.getReplies() != null) comment.getReplies().forEach(stack::push);
+            }
+        }
+        int length = collected.values().stream().mapToInt(List::size).sum();
+        Map<String, int[]> positions = new HashMap<>();
+        collected.forEach((term, list) -> positions.put(term, list.stream().mapToInt(Integer::intValue).toArray()));
+
+        var doc = new Segment.Doc(
+                blogPost.getBlogId(),
+                false,
+                blogPost.getTitle(),
+                blogPost.getAuthor(),
+                blogPost.getCreatedOn() == null ? 0 : blogPost.getCreatedOn().getTime(),
+                blogPost.getLastUpdated() == null ? 0 : blogPost.getLastUpdated().getTime(),
+                length
+        );
+        append(doc, positions);
+    }
+
+    /**
+     * Removes a post from the index by writing a tombstone for it.
+     */
+    public void remove(String blogId){
+        if(blogId == null) return;
+        lock.readLock().lock();
+        try {
+            var current = latest.get(blogId);
+            // Before the load the post may be in a segment on disk, the tombstone is replayed on top of it
+            if(loaded && (current == null || current.segment().docs.get(current.ord()).tombstone())) return;
+        }finally {
+            lock.readLock().unlock();
+        }
+        append(new Segment.Doc(blogId, true, "", "", 0, 0, 0), Map.of());
+    }
+
+    /**
+     * Ranked search. Free terms are scored with BM25 and any "quoted phrase" must appear in order.
+     * @param queryText The query
+     * @param page Zero based page number
+     * @param size Page size
+     * @return The requested page of hits, best first
+     */
+    public SearchResults search(String queryText, int page, int size){
+        List<List<String>> phrases = new ArrayList<>();
+        Matcher matcher = PHRASE.matcher(queryText);
+        while(matcher.find()){
+            var phrase = Tokenizer.tokenize(matcher.group(1));
+            if(!phrase.isEmpty()) phrases.add(phrase);
+        }
+        Set<String> terms = new LinkedHashSet<>(Tokenizer.tokenize(queryText));
+
+        lock.readLock().lock();
+        try {
+            List<SearchHit> hits = new ArrayList<>();
+            if(liveDocs == 0 || terms.isEmpty()) return new SearchResults(queryText, 0, page, size, hits);
+            double averageLength = Math.max(1.0, (double) totalLength / liveDocs);
+            List<Segment> all = new ArrayList<>(segments);
+            all.add(buffer);
+
+            Map<DocRef, Double> scores = new HashMap<>();
+            for(var term : terms){
+                int documentFrequency = 0;
+                for(var segment : all){
+                    var postings = segment.terms.get(term);
+                    if(postings == null) continue;
+                    for(var posting : postings) if(segment.isLive(posting.doc())) documentFrequency++;
+                }
+                if(documentFrequency == 0) continue;
+                double idf = Math.log(1 + (liveDocs - documentFrequency + 0.5) / (documentFrequency + 0.5));
+                for(var segment : all){
+                    var postings = segment.terms.get(term);
+                    if(postings == null) continue;
+                    for(var posting : postings){
+                        if(!segment.isLive(posting.doc())) continue;
+                        int tf = posting.positions().length;
+                        int docLength = segment.docs.get(posting.doc()).length();
+                        double score = idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * docLength / averageLength));
+                        scores.merge(new DocRef(segment, posting.doc()), score, Double::sum);
+                    }
+                }
+            }
+            if(!phrases.isEmpty()) scores.keySet().removeIf(ref -> !containsPhrases(ref, phrases));
+
+            List<Map.Entry<DocRef, Double>> ranked = new ArrayList<>(scores.entrySet());
+            ranked.sort((a, b) -> {
+                int byScore = Double.compare(b.getValue(), a.getValue());
+                if(byScore != 0) return byScore;
+                return Long.compare(doc(b.getKey()).createdOn(), doc(a.getKey()).createdOn());
+            });
+            // As a long, a large page number would overflow the offset
+            int from = (int) Math.min(ranked.size(), Math.max(0L, (long) page * size));
+            int to = Math.min(ranked.size(), from + size);
+            for(var entry : ranked.subList(from, to)){
+                var doc = doc(entry.getKey());
+                hits.add(new SearchHit(doc.blogId(), doc.title(), doc.author(), new Date(doc.createdOn()), entry.getValue()));
+            }
+            return new SearchResults(queryText, ranked.size(), page, size, hits);
+        }finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${search.fulltext.flush-interval-ms:30000}")
+    public void scheduledFlush(){
+        if(ready) flush();
+    }
+
+    @PreDestroy
+    public void close(){
+        flush();
+    }
+
+    /**
+     * Seals the write buffer into a segment on disk, merging segments when there are too many.
+     * Does nothing until the segments on disk are loaded, the buffer is replayed on top of them instead.
+     */
+    public void flush(){
+        if(!loaded) return;
+        flushLock.lock();
+        try {
+            Segment sealed;
+            lock.writeLock().lock();
+            try {
+                if(buffer.docs.isEmpty()) return;
+                sealed = buffer;
+                segments.add(sealed);
+                buffer = new Segment(nextGeneration++);
+            }finally {
+                lock.writeLock().unlock();
+            }
+            Path dir = Paths.get(directory);
+            Files.createDirectories(dir);
+            sealed.write(dir);
+            if(segments.size() > maxSegments) merge(dir);
+        }catch (IOException e){
+            System.out.println("Full text index flush failed: " + e.getMessage());
+        }finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void append(Segment.Doc doc, Map<String, int[]> positions){
+        boolean full;
+        lock.writeLock().lock();
+        try {
+            int ord = buffer.add(doc, positions);
+            register(buffer, ord);
+            full = buffer.docs.size() >= flushThreshold;
+        }finally {
+            lock.writeLock().unlock();
+        }
+        if(full) flush();
+    }
+
+    // Makes (segment, ord) the newest entry for its blogId, superseding any older entry. Needs the write lock.
+    private void register(Segment segment, int ord){
+        var doc = segment.docs.get(ord);
+        var previous = latest.put(doc.blogId(), new DocRef(segment, ord));
+        if(previous != null){
+            previous.segment().deleted.set(previous.ord());
+            var old = doc(previous);
+            if(!old.tombstone()){
+                liveDocs--;
+                totalLength -= old.length();
+            }
+        }
+        if(doc.tombstone()){
+            segment.deleted.set(ord);
+        }else{
+            liveDocs++;
+            totalLength += doc.length();
+        }
+    }
+
+    // Rewrites every sealed segment into one, keeping only the newest entry of each post.
+    private void merge(Path dir) throws IOException {
+        List<Segment> inputs;
+        Segment merged;
+        lock.writeLock().lock();
+        try {
+            inputs = new ArrayList<>(segments);
+            merged = new Segment(inputs.get(inputs.size() - 1).generation);
+            Map<Segment, int[]> remap = new HashMap<>();
+            for(var segment : inputs){
+                int[] map = new int[segment.docs.size()];
+                Arrays.fill(map, -1);
+                for(int ord = 0; ord < segment.docs.size(); ord++){
+                    var doc = segment.docs.get(ord);
+                    var current = latest.get(doc.blogId());
+                    // Tombstones are kept so older files left behind by a crash can't resurrect a post
+                    if(current != null && current.segment() == segment && current.ord() == ord){
+                        map[ord] = merged.add(doc, Map.of());
+                        latest.put(doc.blogId(), new DocRef(merged, map[ord]));
+                        if(doc.tombstone()) merged.deleted.set(map[ord]);
+                    }
+                }
+                remap.put(segment, map);
+            }
+            // Segments are visited in order and ordinals only grow, so merged posting lists stay sorted
+            for(var segment : inputs){
+                int[] map = remap.get(segment);
+                segment.terms.forEach((term, postings) -> {
+                    for(var posting : postings){
+                        if(map[posting.doc()] < 0) continue;
+                        merged.terms.computeIfAbsent(term, k -> new ArrayList<>()).add(new Segment.Posting(map[posting.doc()], posting.positions()));
+                    }
+                });
+            }
+            segments.removeAll(inputs);
+            segments.add(0, merged);
+        }finally {
+            lock.writeLock().unlock();
+        }
+        merged.write(dir);
+        for(var segment : inputs){
+            if(segment.generation != merged.generation) Files.deleteIfExists(Segment.fileFor(dir, segment.generation));
+        }
+    }
+
+    private void load() throws IOException {
+        Path dir = Paths.get(directory);
+        if(!Files.isDirectory(dir)) return;
+        List<Path> files;
+        try(var listing = Files.list(dir)){
+            files = listing.filter(path -> path.getFileName().toString().matches("seg_\\d+\\.idx")).sorted().toList();
+        }
+        List<Segment> loaded = new ArrayList<>();
+        for(var file : files) loaded.add(Segment.read(file));
+        lock.writeLock().lock();
+        try {
+            // Posts indexed while loading are newer than anything on disk. Which entries are the newest has to be
+            // taken now, registering the disk segments marks them superseded.
+            Segment early = buffer;
+            List<Integer> newest = new ArrayList<>();
+            for(int ord = 0; ord < early.docs.size(); ord++){
+                var current = latest.get(early.docs.get(ord).blogId());
+                if(current != null && current.segment() == early && current.ord() == ord) newest.add(ord);
+            }
+            for(var segment : loaded){
+                segments.add(segment);
+                for(int ord = 0; ord < segment.docs.size(); ord++) register(segment, ord);
+                nextGeneration = Math.max(nextGeneration, segment.generation + 1);
+            }
+            // Replayed on top, tombstones included
+            buffer = new Segment(nextGeneration++);
+            for(int ord : newest){
+                int copy = buffer.add(early.docs.get(ord), positionsOf(early, ord));
+                register(buffer, copy);
+            }
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void reset(){
+        lock.writeLock().lock();
+        try {
+            segments.clear();
+            latest.clear();
+            liveDocs = 0;
+            totalLength = 0;
+            buffer = new Segment(nextGeneration++);
+        }finally {
+            lock.writeLock().unlock();
+        }
+        try(var listing = Files.list(Paths.get(directory))){
+            for(var file : listing.toList()) Files.deleteIfExists(file);
+        }catch (IOException e){
+            System.out.println("Could not clear full text index directory: " + e.getMessage());
+        }
+    }
+
+    // Re-indexes posts that changed while the app was down and drops posts that are gone.
+    private void catchUp(){
+        Map<String, Long> indexed = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            latest.forEach((blogId, ref) -> {
+                var doc = doc(ref);
+                if(!doc.tombstone()) indexed.put(blogId, doc.lastUpdated());
+            });
+        }finally {
+            lock.readLock().unlock();
+        }
+
+        Set<String> seen = new HashSet<>();
+        List<String> stale = new ArrayList<>();
+        Query query = new Query();
+        query.fields().include("blogId").include("lastUpdated").include("deleted");
+        try(var posts = mongoTemplate.stream(query, BlogPost.class)){
+            posts.forEach(post -> {
+                seen.add(post.getBlogId());
+                Long indexedUpdate = indexed.get(post.getBlogId());
+                long lastUpdated = post.getLastUpdated() == null ? 0 : post.getLastUpdated().getTime();
+                if(post.isDeleted()){
+                    if(indexedUpdate != null) remove(post.getBlogId());
+                }else if(indexedUpdate == null || indexedUpdate < lastUpdated){
+                    stale.add(post.getBlogId());
+                }
+            });
+        }
+        for(var blogId : indexed.keySet()) if(!seen.contains(blogId)) remove(blogId);
+        for(int i = 0; i < stale.size(); i += REINDEX_BATCH){
+            var batch = stale.subList(i, Math.min(stale.size(), i + REINDEX_BATCH));
+            // Comments live in their own collection, only their bodies are needed so they are attached as a flat list
+            Map<String, List<BlogPostComment>> comments = new HashMap<>();
+            Query commentQuery = new Query(Criteria.where("blogId").in(batch));
+            commentQuery.fields().include("blogId").include("body").include("deleted");
+            mongoTemplate.find(commentQuery, BlogPostComment.class)
+                    .forEach(comment -> comments.computeIfAbsent(comment.getBlogId(), k -> new ArrayList<>()).add(comment));
+            mongoTemplate.find(new Query(Criteria.where("blogId").in(batch)), BlogPost.class).forEach(post -> {
+                post.setComments(comments.getOrDefault(post.getBlogId(), List.of()));
+                index(post);
+            });
+        }
+    }
+
+    private static Map<String, int[]> positionsOf(Segment segment, int ord){
+        Map<String, int[]> positions = new HashMap<>();
+        segment.terms.forEach((term, postings) -> {
+            int[] found = segment.positions(term, ord);
+            if(found != null) positions.put(term, found);
+        });
+        return positions;
+    }
+
+    private boolean containsPhrases(DocRef ref, List<List<String>> phrases){
+        for(var phrase : phrases){
+            int[] first = ref.segment().positions(phrase.get(0), ref.ord());
+            if(first == null) return false;
+            List<int[]> rest = new ArrayList<>();
+            for(int i = 1; i < phrase.size(); i++){
+                int[] positions = ref.segment().positions(phrase.get(i), ref.ord());
+                if(positions == null) return false;
+                rest.add(positions);
+            }
+            boolean found = false;
+            for(int start : first){
+                boolean match = true;
+                for(int i = 0; i < rest.size() && match; i++) match = Arrays.binarySearch(rest.get(i), start + i + 1) >= 0;
+                if(match){
+                    found = true;
+                    break;
+                }
+            }
+            if(!found) return false;
+        }
+        return true;
+    }
+
+    private static int addField(Map<String, List<Integer>> collected, int start, String text){
+        int position = start;
+        for(var token : Tokenizer.tokenize(text)) collected.computeIfAbsent(token, k -> new ArrayList<>()).add(position++);
+        return position;
+    }
+
+    private static Segment.Doc doc(DocRef ref){
+        return ref.segment().docs.get(ref.ord());
+    }
+}
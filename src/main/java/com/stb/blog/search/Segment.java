@@ -0,0 +1,146 @@
+package com.stb.blog.search;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * A group of indexed documents with positional postings.
+ * Documents are only ever appended, so each posting list stays sorted by document ordinal.
+ * A segment is mutable while it is the write buffer and treated as read only once sealed,
+ * apart from its deleted set which tracks documents superseded by a newer segment.
+ */
+class Segment {
+    private static final int MAGIC = 0x424C4753;
+    private static final int VERSION = 1;
+
+    record Doc(String blogId, boolean tombstone, String title, String author, long createdOn, long lastUpdated, int length){}
+    record Posting(int doc, int[] positions){}
+
+    final long generation;
+    final List<Doc> docs = new ArrayList<>();
+    final Map<String, List<Posting>> terms = new HashMap<>();
+    final BitSet deleted = new BitSet();
+
+    Segment(long generation){
+        this.generation = generation;
+    }
+
+    /**
+     * Appends a document.
+     * @param doc Stored fields of the document
+     * @param positions Term to positions of the term in the document, empty for tombstones
+     * @return Ordinal of the document in this segment
+     */
+    int add(Doc doc, Map<String, int[]> positions){
+        int ord = docs.size();
+        docs.add(doc);
+        positions.forEach((term, pos) -> terms.computeIfAbsent(term, k -> new ArrayList<>()).add(new Posting(ord, pos)));
+        return ord;
+    }
+
+    boolean isLive(int ord){
+        return !deleted.get(ord) && !docs.get(ord).tombstone();
+    }
+
+    /**
+     * Finds the positions of a term in one document using the sorted posting list.
+     */
+    int[] positions(String term, int ord){
+        List<Posting> postings = terms.get(term);
+        if(postings == null) return null;
+        int low = 0, high = postings.size() - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            int doc = postings.get(mid).doc();
+            if(doc < ord) low = mid + 1;
+            else if(doc > ord) high = mid - 1;
+            else return postings.get(mid).positions();
+        }
+        return null;
+    }
+
+    static Path fileFor(Path directory, long generation){
+        return directory.resolve(String.format("seg_%019d.idx", generation));
+    }
+
+    void write(Path directory) throws IOException {
+        Path target = fileFor(directory, generation);
+        Path temp = directory.resolve(target.getFileName() + ".tmp");
+        try(var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))){
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeInt(docs.size());
+            for(var doc : docs){
+                writeString(out, doc.blogId());
+                out.writeBoolean(doc.tombstone());
+                writeString(out, doc.title());
+                writeString(out, doc.author());
+                out.writeLong(doc.createdOn());
+                out.writeLong(doc.lastUpdated());
+                out.writeInt(doc.length());
+            }
+            out.writeInt(terms.size());
+            for(var entry : terms.entrySet()){
+                writeString(out, entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for(var posting : entry.getValue()){
+                    out.writeInt(posting.doc());
+                    out.writeInt(posting.positions().length);
+                    // Positions are increasing so store the gaps
+                    int previous = 0;
+                    for(int position : posting.positions()){
+                        out.writeInt(position - previous);
+                        previous = position;
+                    }
+                }
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static Segment read(Path file) throws IOException {
+        try(var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))){
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not a search segment: " + file);
+            Segment segment = new Segment(in.readLong());
+            int docCount = in.readInt();
+            for(int i = 0; i < docCount; i++){
+                segment.docs.add(new Doc(readString(in), in.readBoolean(), readString(in), readString(in), in.readLong(), in.readLong(), in.readInt()));
+            }
+            int termCount = in.readInt();
+            for(int i = 0; i < termCount; i++){
+                String term = readString(in);
+                int postingCount = in.readInt();
+                List<Posting> postings = new ArrayList<>(postingCount);
+                for(int j = 0; j < postingCount; j++){
+                    int doc = in.readInt();
+                    int[] positions = new int[in.readInt()];
+                    int previous = 0;
+                    for(int k = 0; k < positions.length; k++){
+                        previous += in.readInt();
+                        positions[k] = previous;
+                    }
+                    postings.add(new Posting(doc, positions));
+                }
+                segment.terms.put(term, postings);
+            }
+            return segment;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
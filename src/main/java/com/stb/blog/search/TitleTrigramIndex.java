@@ -0,0 +1,157 @@
+package com.stb.blog.search;
+
+import com.stb.blog.models.BlogPost;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In memory trigram inverted index over blog post titles.
+ * Maps every 3 character slice of a lower cased title to the blogIds containing it,
+ * so substring searches only touch candidate posts instead of the whole collection.
+ */
+@Component
+public class TitleTrigramIndex {
+    private static final int GRAM = 3;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    // trigram -> blogIds
+    private final Map<String, Set<String>> postings = new ConcurrentHashMap<>();
+    // blogId -> lower cased title, used to verify candidates and for short snippets
+    private final Map<String, String> titles = new ConcurrentHashMap<>();
+    private volatile boolean ready = false;
+    // blogIds indexed or removed live while a rebuild streams, the stream may hold an older title for them
+    private final Set<String> touchedDuringBuild = new HashSet<>();
+    private boolean building = false;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void buildOnStartup(){
+        Thread builder = new Thread(this::rebuild, "title-index-build");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    /**
+     * Rebuilds the index from the Posts collection reading only blogId and title.
+     * Live index and remove calls made meanwhile win over the streamed titles.
+     */
+    public void rebuild(){
+        synchronized (this){
+            building = true;
+        }
+        try {
+            Query query = new Query();
+            query.fields().include("blogId").include("title");
+            try (var posts = mongoTemplate.stream(query, BlogPost.class)) {
+                posts.forEach(this::indexStreamed);
+            }
+            ready = true;
+        }catch (RuntimeException e){
+            System.out.println("Title index build failed: " + e.getMessage());
+        }finally {
+            synchronized (this){
+                building = false;
+                touchedDuringBuild.clear();
+            }
+        }
+    }
+
+    private synchronized void indexStreamed(BlogPost blogPost){
+        if(blogPost == null || touchedDuringBuild.contains(blogPost.getBlogId())) return;
+        put(blogPost);
+    }
+
+    public boolean isReady(){
+        return ready;
+    }
+
+    /**
+     * Adds or re-indexes a post title.
+     */
+    public synchronized void index(BlogPost blogPost){
+        if(blogPost == null || blogPost.getBlogId() == null) return;
+        if(building) touchedDuringBuild.add(blogPost.getBlogId());
+        put(blogPost);
+    }
+
+    private void put(BlogPost blogPost){
+        if(blogPost.getBlogId() == null) return;
+        String blogId = blogPost.getBlogId();
+        String title = normalize(blogPost.getTitle());
+        String previous = titles.put(blogId, title);
+        if(title.equals(previous)) return;
+        if(previous != null){
+            Set<String> kept = trigrams(title);
+            for(var gram : trigrams(previous)) if(!kept.contains(gram)) removePosting(gram, blogId);
+        }
+        for(var gram : trigrams(title)) postings.computeIfAbsent(gram, k -> ConcurrentHashMap.newKeySet()).add(blogId);
+    }
+
+    /**
+     * Removes a post from the index.
+     */
+    public synchronized void remove(String blogId){
+        if(blogId == null) return;
+        if(building) touchedDuringBuild.add(blogId);
+        String previous = titles.remove(blogId);
+        if(previous == null) return;
+        for(var gram : trigrams(previous)) removePosting(gram, blogId);
+    }
+
+    /**
+     * Finds the blogIds whose title contains the snippet, ignoring case.
+     * @param titleSnip Snippet to look for
+     * @return Matching blogIds
+     */
+    public Set<String> search(String titleSnip){
+        String snip = normalize(titleSnip);
+        Set<String> matches = new HashSet<>();
+        if(snip.length() < GRAM){
+            // Too short to have a trigram, scan the in memory titles instead
+            titles.forEach((blogId, title) -> { if(title.contains(snip)) matches.add(blogId); });
+            return matches;
+        }
+
+        // Intersect the posting lists starting from the smallest one
+        List<Set<String>> lists = new ArrayList<>();
+        for(var gram : trigrams(snip)){
+            Set<String> list = postings.get(gram);
+            if(list == null) return matches;
+            lists.add(list);
+        }
+        lists.sort(Comparator.comparingInt(Set::size));
+        outer:
+        for(var blogId : lists.get(0)){
+            for(int i = 1; i < lists.size(); i++) if(!lists.get(i).contains(blogId)) continue outer;
+            // Trigrams can match out of order, confirm the real substring
+            String title = titles.get(blogId);
+            if(title != null && title.contains(snip)) matches.add(blogId);
+        }
+        return matches;
+    }
+
+    private void removePosting(String gram, String blogId){
+        Set<String> list = postings.get(gram);
+        if(list == null) return;
+        list.remove(blogId);
+        if(list.isEmpty()) postings.remove(gram);
+    }
+
+    private static String normalize(String text){
+        return text == null ? "" : text.toLowerCase();
+    }
+
+    private static Set<String> trigrams(String text){
+        Set<String> grams = new HashSet<>();
+        for(int i = 0; i + GRAM <= text.length(); i++) grams.add(text.substring(i, i + GRAM));
+        return grams;
+    }
+}
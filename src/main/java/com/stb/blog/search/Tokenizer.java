@@ -0,0 +1,28 @@
+package com.stb.blog.search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits text into lower cased runs of letters and digits.
+ */
+public final class Tokenizer {
+    private static final int MAX_TOKEN_LENGTH = 40;
+
+    private Tokenizer(){}
+
+    public static List<String> tokenize(String text){
+        List<String> tokens = new ArrayList<>();
+        if(text == null) return tokens;
+        int start = -1;
+        for(int i = 0; i <= text.length(); i++){
+            boolean tokenChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if(tokenChar && start < 0) start = i;
+            else if(!tokenChar && start >= 0){
+                if(i - start <= MAX_TOKEN_LENGTH) tokens.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
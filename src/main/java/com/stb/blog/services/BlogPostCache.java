@@ -0,0 +1,100 @@
+package com.stb.blog.services;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.stb.blog.models.BlogPost;
+import com.stb.blog.models.BlogPostComment;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Function;
+
+/**
+ * Read-through cache of posts with their comment tree, by blogId.
+ * Bounded by an estimate of the memory each post takes, Caffeine evicts with W-TinyLFU so posts read
+ * often survive a burst of one-off reads. Entries are shared, callers get a copy from {@link BlogPostService}.
+ */
+@Component
+public class BlogPostCache {
+    // Rough cost of a comment besides its body: ids, dates, likes and object headers
+    private static final int COMMENT_WEIGHT = 256;
+    private static final int POST_WEIGHT = 512;
+
+    @Value("${cache.posts.max-weight:50000000}")
+    private long maxWeight;
+
+    @Value("${cache.posts.ttl-seconds:300}")
+    private long ttlSeconds;
+
+    private AsyncCache<String, BlogPost> cache;
+
+    @PostConstruct
+    public void init(){
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((String blogId, BlogPost blogPost) -> weigh(blogPost))
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .recordStats()
+                .buildAsync();
+    }
+
+    /**
+     * Gets the cached post or loads it. Nothing is cached when the loader returns null.
+     */
+    public BlogPost get(String blogId, Function<String, BlogPost> loader){
+        if(blogId == null) return null;
+        return CacheLoading.get(cache, blogId, loader);
+    }
+
+    /**
+     * The cached post if it is loaded, never loads or waits for a load.
+     */
+    public BlogPost getIfPresent(String blogId){
+        if(blogId == null) return null;
+        var future = cache.getIfPresent(blogId);
+        if(future == null || !future.isDone() || future.isCompletedExceptionally()) return null;
+        return future.getNow(null);
+    }
+
+    public void invalidate(String blogId){
+        if(blogId != null) cache.synchronous().invalidate(blogId);
+    }
+
+    public CacheStats stats(){
+        return cache.synchronous().stats();
+    }
+
+    public long estimatedSize(){
+        return cache.synchronous().estimatedSize();
+    }
+
+    public long weightedSize(){
+        return cache.synchronous().policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+    }
+
+    public long maximumWeight(){
+        return maxWeight;
+    }
+
+    private static int weigh(BlogPost blogPost){
+        long weight = POST_WEIGHT + length(blogPost.getTitle()) + length(blogPost.getBody());
+        if(blogPost.getComments() != null){
+            Deque<BlogPostComment> stack = new ArrayDeque<>(blogPost.getComments());
+            while(!stack.isEmpty()){
+                var comment = stack.pop();
+                weight += COMMENT_WEIGHT + length(comment.getTitle()) + length(comment.getBody());
+                if(comment.getReplies() != null) comment.getReplies().forEach(stack::push);
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, weight);
+    }
+
+    private static int length(String value){
+        return value == null ? 0 : value.length();
+    }
+}
@@ -0,0 +1,399 @@
+package com.stb.blog.services;
+
+import com.stb.blog.actions.Cursor;
+import com.stb.blog.models.BlogPost;
+import com.stb.blog.models.BlogPostComment;
+import com.stb.blog.models.BlogPostCommentThreadReturn;
+import com.stb.blog.models.CursorPage;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.ArrayOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Comments live in their own collection, one document per comment, with a materialized path of
+ * their ancestors. A whole thread or the subtree under a comment is read with one indexed prefix
+ * query, a page of a thread reads only the replies it shows, and a single comment is written without
+ * touching the post or its other comments.
+ */
+@Service
+public class BlogPostCommentService {
+    public static final int DEFAULT_PAGE_SIZE = 20;
+    public static final int MAX_PAGE_SIZE = 100;
+    public static final int DEFAULT_DEPTH = 2;
+    public static final int MAX_DEPTH = 10;
+    // Replies shown under each comment before the thread is cut off with a cursor
+    public static final int INLINE_REPLIES = 5;
+    private static final int DUPLICATE_KEY = 11000;
+
+    private static final Comparator<BlogPostComment> OLDEST_FIRST = Comparator
+            .comparing((BlogPostComment comment) -> createdOn(comment))
+            .thenComparing(BlogPostComment::getCommentId);
+    static final Sort OLDEST_FIRST_SORT = Sort.by(Sort.Direction.ASC, "createdOn", "commentId");
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private LikeBuffer likeBuffer;
+
+    @Autowired
+    private IndexBootstrapService indexBootstrapService;
+
+    /**
+     * Reads every comment of a post and links them into a tree.
+     * @return The top level comments, oldest first
+     */
+    public List<BlogPostComment> loadThread(String blogId){
+        Query query = new Query(Criteria.where("blogId").is(blogId)).with(OLDEST_FIRST_SORT);
+        return buildTree(mongoTemplate.find(query, BlogPostComment.class));
+    }
+
+    /**
+     * Gets a page of top level comments of a post, oldest first.
+     * @param blogId Post the comments belong to
+     * @param cursor Encoded cursor from a previous page or null for the first page
+     * @param size Page size, clamped to [1, MAX_PAGE_SIZE]
+     * @param maxDepth Levels of the thread to include, 1 is only the comments themselves
+     * @return The page or null if the post doesn't exist
+     */
+    public CursorPage<BlogPostCommentThreadReturn> getComments(String blogId, String cursor, int size, int maxDepth){
+        if(!mongoTemplate.exists(new Query(Criteria.where("blogId").is(blogId)), BlogPost.class)) return null;
+        return pageChildren(blogId, null, Cursor.decode(cursor), clampSize(size), clampDepth(maxDepth));
+    }
+
+    /**
+     * Gets a page of direct replies to a comment, oldest first.
+     * @return The page or null if the comment doesn't exist
+     */
+    public CursorPage<BlogPostCommentThreadReturn> getReplies(String blogId, String commentId, String cursor, int size, int maxDepth){
+        BlogPostComment parent = findComment(blogId, commentId);
+        if(parent == null) return null;
+        return pageChildren(blogId, parent, Cursor.decode(cursor), clampSize(size), clampDepth(maxDepth));
+    }
+
+    public BlogPostComment findComment(String blogId, String commentId){
+        Query query = new Query(Criteria.where("commentId").is(commentId).and("blogId").is(blogId));
+        return mongoTemplate.findOne(query, BlogPostComment.class);
+    }
+
+    /**
+     * Stores a new comment and bumps the comment counters of its post and parent.
+     * @param comment The new comment
+     * @param parent The comment being replied to or null for a top level comment
+     * @return The saved comment
+     */
+    public BlogPostComment addComment(BlogPostComment comment, BlogPostComment parent){
+        comment.setParentCommentId(parent == null ? null : parent.getCommentId());
+        comment.setPath(parent == null ? "" : childPath(parent));
+        comment.setDepth(parent == null ? 0 : parent.getDepth() + 1);
+        comment.setReplyCount(0);
+        var saved = mongoTemplate.insert(comment);
+        if(saved.getReplies() == null) saved.setReplies(new ArrayList<>());
+
+        if(parent != null){
+            mongoTemplate.updateFirst(byCommentId(parent.getCommentId()), new Update().inc("replyCount", 1), BlogPostComment.class);
+            parent.setReplyCount(parent.getReplyCount() + 1);
+        }
+        Update counters = new Update().inc("totalCommentCount", 1);
+        if(parent == null) counters.inc("topLevelCommentCount", 1);
+        mongoTemplate.updateFirst(byBlogId(comment.getBlogId()), BlogPostService.touch(counters), BlogPost.class);
+        return saved;
+    }
+
+    /**
+     * Writes the editable fields of a comment. Likes are updated separately and are not touched.
+     */
+    public BlogPostComment saveComment(BlogPostComment comment){
+        Update update = new Update()
+                .set("title", comment.getTitle())
+                .set("body", comment.getBody())
+                .set("lastUpdated", comment.getLastUpdated());
+        var result = mongoTemplate.updateFirst(byCommentId(comment.getCommentId()), update, BlogPostComment.class);
+        if(result.getMatchedCount() == 0) return null;
+        touchPost(comment.getBlogId());
+        return comment;
+    }
+
+    /**
+     * Sets the deleted flag of a comment.
+     * @return The comment or null if it doesn't exist
+     */
+    public BlogPostComment setDeleted(BlogPostComment comment, boolean deleted){
+        var result = mongoTemplate.updateFirst(byCommentId(comment.getCommentId()), new Update().set("deleted", deleted), BlogPostComment.class);
+        if(result.getMatchedCount() == 0) return null;
+        touchPost(comment.getBlogId());
+        comment.setDeleted(deleted);
+        return comment;
+    }
+
+    /**
+     * Removes a comment together with every reply below it.
+     * @return The comment or null if nothing was removed
+     */
+    public BlogPostComment removeComment(BlogPostComment comment){
+        Query query = new Query(Criteria.where("blogId").is(comment.getBlogId()).orOperator(
+                Criteria.where("commentId").is(comment.getCommentId()),
+                Criteria.where("path").regex("^" + childPath(comment))
+        ));
+        long removed = mongoTemplate.remove(query, BlogPostComment.class).getDeletedCount();
+        if(removed == 0) return null;
+
+        if(comment.getParentCommentId() != null){
+            mongoTemplate.updateFirst(byCommentId(comment.getParentCommentId()), new Update().inc("replyCount", -1), BlogPostComment.class);
+        }
+        Update counters = new Update().inc("totalCommentCount", -removed);
+        if(comment.getParentCommentId() == null) counters.inc("topLevelCommentCount", -1);
+        mongoTemplate.updateFirst(byBlogId(comment.getBlogId()), BlogPostService.touch(counters), BlogPost.class);
+        return comment;
+    }
+
+    private void touchPost(String blogId){
+        mongoTemplate.updateFirst(byBlogId(blogId), BlogPostService.touch(new Update()), BlogPost.class);
+    }
+
+    public long removeAllCommentsOfPost(String blogId){
+        return mongoTemplate.remove(new Query(Criteria.where("blogId").is(blogId)), BlogPostComment.class).getDeletedCount();
+    }
+
+    /**
+     * Moves the comments embedded in a post by older versions into the Comments collection.
+     * The comments are inserted first, only where their commentId is absent, so a failed or repeated run is harmless.
+     * Then one findAndModify takes the embedded array off the post, if it is still there, and increments the counters,
+     * so only one caller counts them and changes made to the post meanwhile are kept.
+     */
+    public void migrateLegacyComments(BlogPost blogPost){
+        if(blogPost.getLegacyComments() == null || blogPost.getLegacyComments().isEmpty()) return;
+        blogPost.setLegacyComments(null);
+        // Raw field name, the query mapper doesn't translate the array index path of legacyComments
+        Query embedded = new Query(Criteria.where("blogId").is(blogPost.getBlogId()).and("comments.0").exists(true));
+        embedded.fields().include("legacyComments");
+        // The array as stored now, the caller's copy may be stale
+        BlogPost stored = mongoTemplate.findOne(embedded, BlogPost.class);
+        if(stored == null){
+            // Another caller migrated them, take its counters
+            refreshCounters(blogPost, mongoTemplate.findOne(byBlogId(blogPost.getBlogId()), BlogPost.class));
+            return;
+        }
+        List<Document> legacy = stored.getLegacyComments();
+
+        // Flatten with an explicit stack so long reply chains can't overflow
+        List<BlogPostComment> flat = new ArrayList<>();
+        Deque<Map.Entry<Document, BlogPostComment>> stack = new ArrayDeque<>();
+        for(int i = legacy.size() - 1; i >= 0; i--) stack.push(new AbstractMap.SimpleEntry<>(legacy.get(i), null));
+        Map<Document, Integer> positions = new IdentityHashMap<>();
+        for(int i = 0; i < legacy.size(); i++) positions.put(legacy.get(i), i);
+        while(!stack.isEmpty()){
+            var entry = stack.pop();
+            var parent = entry.getValue();
+            BlogPostComment comment = mongoTemplate.getConverter().read(BlogPostComment.class, entry.getKey());
+            comment.setId(null);
+            comment.setBlogId(blogPost.getBlogId());
+            if(comment.getCommentId() == null){
+                // Derived from the comment's place in the thread so a second run finds the comment the first one inserted
+                String place = blogPost.getBlogId() + "/" + (parent == null ? "" : parent.getCommentId()) + "/" + positions.get(entry.getKey());
+                comment.setCommentId(DigestUtils.md5DigestAsHex(place.getBytes(StandardCharsets.UTF_8)).substring(0, 24));
+            }
+            if(comment.getLikes() == null) comment.setLikes(new HashSet<>());
+            comment.setParentCommentId(parent == null ? null : parent.getCommentId());
+            comment.setPath(parent == null ? "" : childPath(parent));
+            comment.setDepth(parent == null ? 0 : parent.getDepth() + 1);
+            List<Document> replies = entry.getKey().getList("replies", Document.class, List.of());
+            comment.setReplyCount(replies.size());
+            flat.add(comment);
+            for(int i = replies.size() - 1; i >= 0; i--){
+                positions.put(replies.get(i), i);
+                stack.push(new AbstractMap.SimpleEntry<>(replies.get(i), comment));
+            }
+        }
+
+        // The upserts rely on the unique commentId index, auto index creation is off
+        indexBootstrapService.ensureIndexes(BlogPostComment.class);
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, BlogPostComment.class);
+        for(var comment : flat){
+            Document fields = new Document();
+            mongoTemplate.getConverter().write(comment, fields);
+            Update insertOnly = new Update();
+            fields.forEach((key, value) -> { if(!key.equals("_id") && !key.equals("_class")) insertOnly.setOnInsert(key, value); });
+            bulk.upsert(byCommentId(comment.getCommentId()), insertOnly);
+        }
+        try {
+            bulk.execute();
+        }catch (BulkOperationException e){
+            // Two callers upserting the same commentId at once, the comment is there either way
+            if(!e.getErrors().stream().allMatch(error -> error.getCode() == DUPLICATE_KEY)) throw e;
+        }
+
+        // Counted by whoever takes the array off the post, once
+        Update taken = BlogPostService.touch(new Update()
+                .unset("legacyComments")
+                .inc("topLevelCommentCount", legacy.size())
+                .inc("totalCommentCount", flat.size()));
+        Query stillEmbedded = new Query(Criteria.where("blogId").is(blogPost.getBlogId()).and("comments.0").exists(true));
+        BlogPost updated = mongoTemplate.findAndModify(stillEmbedded, taken, FindAndModifyOptions.options().returnNew(true), BlogPost.class);
+        refreshCounters(blogPost, updated != null ? updated : mongoTemplate.findOne(byBlogId(blogPost.getBlogId()), BlogPost.class));
+    }
+
+    private static void refreshCounters(BlogPost blogPost, BlogPost stored){
+        if(stored == null) return;
+        blogPost.setTopLevelCommentCount(stored.getTopLevelCommentCount());
+        blogPost.setTotalCommentCount(stored.getTotalCommentCount());
+        blogPost.setRevision(stored.getRevision());
+        blogPost.setLastActivity(stored.getLastActivity());
+    }
+
+    // Reads one level of comments, then the replies shown under them with one query per level, at most
+    // INLINE_REPLIES + 1 per comment so reads stay bounded by what is rendered however large the thread is.
+    private CursorPage<BlogPostCommentThreadReturn> pageChildren(String blogId, BlogPostComment parent, Cursor after, int size, int depth){
+        Criteria criteria = Criteria.where("blogId").is(blogId).and("parentCommentId").is(parent == null ? null : parent.getCommentId());
+        if(after != null){
+            criteria.orOperator(
+                    Criteria.where("createdOn").gt(after.createdOn()),
+                    Criteria.where("createdOn").is(after.createdOn()).and("commentId").gt(after.id())
+            );
+        }
+        // Fetch one extra to know if there is a next page
+        List<BlogPostComment> level = mongoTemplate.find(new Query(criteria).with(OLDEST_FIRST_SORT).limit(size + 1), BlogPostComment.class);
+        List<BlogPostComment> all = new ArrayList<>(level);
+        List<BlogPostComment> shown = level.subList(0, Math.min(size, level.size()));
+        for(int below = 1; below < depth && !shown.isEmpty(); below++){
+            List<String> parents = new ArrayList<>();
+            for(var comment : shown) if(comment.getReplyCount() > 0) parents.add(comment.getCommentId());
+            if(parents.isEmpty()) break;
+            Map<String, Integer> kept = new HashMap<>();
+            List<BlogPostComment> next = new ArrayList<>();
+            for(var reply : firstRepliesOf(blogId, parents)){
+                all.add(reply);
+                // The extra one only tells there are more, its replies aren't shown
+                if(kept.merge(reply.getParentCommentId(), 1, Integer::sum) <= INLINE_REPLIES) next.add(reply);
+            }
+            shown = next;
+        }
+        buildTree(withPendingLikes(all));
+        return page(level, size, depth);
+    }
+
+    // The oldest INLINE_REPLIES + 1 replies of each parent in one aggregation, walking the blogId/parentCommentId/createdOn index
+    private List<BlogPostComment> firstRepliesOf(String blogId, List<String> parentCommentIds){
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("blogId").is(blogId).and("parentCommentId").in(parentCommentIds)),
+                Aggregation.sort(Sort.by(Sort.Direction.ASC, "parentCommentId", "createdOn", "commentId")),
+                Aggregation.group("parentCommentId").push(Aggregation.ROOT).as("firstReplies"),
+                Aggregation.project().and(ArrayOperators.Slice.sliceArrayOf("firstReplies").itemCount(INLINE_REPLIES + 1)).as("firstReplies"),
+                Aggregation.unwind("firstReplies"),
+                Aggregation.replaceRoot("firstReplies")
+        );
+        String collection = mongoTemplate.getCollectionName(BlogPostComment.class);
+        return new ArrayList<>(mongoTemplate.aggregate(aggregation, collection, BlogPostComment.class).getMappedResults());
+    }
+
+    // Likes that are toggled but not flushed yet
+    private List<BlogPostComment> withPendingLikes(List<BlogPostComment> comments){
+        if(!likeBuffer.hasPending()) return comments;
+        for(var comment : comments){
+            comment.setLikes(likeBuffer.mergeLikes(LikeBuffer.Key.comment(comment.getBlogId(), comment.getCommentId()), comment.getLikes()));
+        }
+        return comments;
+    }
+
+    private CursorPage<BlogPostCommentThreadReturn> page(List<BlogPostComment> comments, int size, int depth){
+        List<BlogPostComment> sorted = new ArrayList<>(comments);
+        sorted.sort(OLDEST_FIRST);
+        List<BlogPostCommentThreadReturn> items = new ArrayList<>();
+        String next = null;
+        for(int i = 0; i < sorted.size(); i++){
+            if(i == size){
+                var last = sorted.get(size - 1);
+                next = new Cursor(createdOn(last), last.getCommentId()).encode();
+                break;
+            }
+            items.add(toThreadReturn(sorted.get(i), depth - 1));
+        }
+        return new CursorPage<>(items, next);
+    }
+
+    private BlogPostCommentThreadReturn toThreadReturn(BlogPostComment comment, int depthLeft){
+        var thread = new BlogPostCommentThreadReturn(
+                comment.getCommentId(),
+                comment.getBlogId(),
+                comment.getParentCommentId(),
+                comment.getLikes(),
+                comment.getTitle(),
+                comment.getAuthor(),
+                comment.getBody(),
+                comment.getCreatedOn(),
+                comment.getLastUpdated(),
+                comment.isDeleted(),
+                new ArrayList<>(),
+                comment.getReplyCount(),
+                false,
+                null
+        );
+        if(comment.getReplyCount() == 0) return thread;
+        if(depthLeft <= 0 || comment.getReplies().isEmpty()){
+            // Depth cut off, the client starts from the first reply
+            thread.setHasMoreReplies(true);
+            return thread;
+        }
+        var inline = page(comment.getReplies(), INLINE_REPLIES, depthLeft);
+        thread.setReplies(inline.getItems());
+        thread.setHasMoreReplies(inline.getNext() != null);
+        thread.setRepliesCursor(inline.getNext());
+        return thread;
+    }
+
+    // Links comments to their parents, comments whose parent isn't in the list are returned as roots.
+    static List<BlogPostComment> buildTree(List<BlogPostComment> comments){
+        Map<String, BlogPostComment> byId = new HashMap<>();
+        for(var comment : comments){
+            comment.setReplies(new ArrayList<>());
+            byId.put(comment.getCommentId(), comment);
+        }
+        List<BlogPostComment> roots = new ArrayList<>();
+        for(var comment : comments){
+            var parent = comment.getParentCommentId() == null ? null : byId.get(comment.getParentCommentId());
+            if(parent == null) roots.add(comment);
+            else parent.getReplies().add(comment);
+        }
+        return roots;
+    }
+
+    // Path shared by every comment below this one. Comment ids are hex so the path is safe in an anchored regex.
+    private static String childPath(BlogPostComment comment){
+        return (comment.getPath() == null ? "" : comment.getPath()) + comment.getCommentId() + "/";
+    }
+
+    private static Query byCommentId(String commentId){
+        return new Query(Criteria.where("commentId").is(commentId));
+    }
+
+    private static Query byBlogId(String blogId){
+        return new Query(Criteria.where("blogId").is(blogId));
+    }
+
+    private static Date createdOn(BlogPostComment comment){
+        return comment.getCreatedOn() == null ? new Date(0) : comment.getCreatedOn();
+    }
+
+    private static int clampSize(int size){
+        return Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+    }
+
+    private static int clampDepth(int depth){
+        return Math.max(1, Math.min(depth, MAX_DEPTH));
+    }
+}
@@ -1,125 +1,456 @@
 package com.stb.blog.services;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.stb.blog.actions.Cursor;
 import com.stb.blog.models.BlogPost;
 import com.stb.blog.models.BlogPostComment;
+import com.stb.blog.models.BlogPostSummary;
+import com.stb.blog.models.ContentVersion;
+import com.stb.blog.models.CursorPage;
+import com.stb.blog.models.SearchResults;
 import com.stb.blog.repositories.BlogPostRepository;
+import com.stb.blog.search.FullTextIndex;
+import com.stb.blog.search.TitleTrigramIndex;
 import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.*;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.regex.Pattern;
 
 @Service
 public class BlogPostService {
+    public static final int DEFAULT_PAGE_SIZE = 20;
+    public static final int MAX_PAGE_SIZE = 100;
+    public static final int EXCERPT_LENGTH = 200;
+    private static final int MAX_LIKE_ATTEMPTS = 3;
+    static final Sort NEWEST_FIRST = Sort.by(Sort.Direction.DESC, "createdOn", "id");
+
     @Autowired
     private BlogPostRepository blogPostRepository;
 
     @Autowired
     private MongoTemplate mongoTemplate;
 
-    public List<BlogPost> getAllBlogPosts(){
-        List<BlogPost> posts=blogPostRepository.findAll();
-        if(posts==null)posts = new ArrayList<BlogPost>();
+    @Autowired
+    private TitleTrigramIndex titleTrigramIndex;
+
+    @Autowired
+    private FullTextIndex fullTextIndex;
+
+    @Autowired
+    private BlogPostCommentService blogPostCommentService;
+
+    @Autowired
+    private LikeBuffer likeBuffer;
+
+    @Autowired
+    private BlogPostCache blogPostCache;
+
+    @Autowired
+    private PostJsonCache postJsonCache;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${export.batch-size:500}")
+    private int exportBatchSize;
+
+    @Value("${export.flush-every:100}")
+    private int exportFlushEvery;
+
+    @Value("${likes.buffer.enabled:true}")
+    private boolean bufferLikes;
+
+    /**
+     * Gets a page of blog posts, newest first, using keyset pagination on (createdOn, _id).
+     * @param cursor Encoded cursor from a previous page or null for the first page
+     * @param size Requested page size, clamped to [1, MAX_PAGE_SIZE]
+     * @return The page or null if the cursor is malformed
+     */
+    public CursorPage<BlogPostSummary> getBlogPostPage(String cursor, int size){
+        int limit = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+        Criteria criteria = null;
+        if(cursor != null){
+            Cursor after = Cursor.decode(cursor);
+            if(after == null || !ObjectId.isValid(after.id())) return null;
+            ObjectId afterId = new ObjectId(after.id());
+            criteria = new Criteria().orOperator(
+                    Criteria.where("createdOn").lt(after.createdOn()),
+                    Criteria.where("createdOn").is(after.createdOn()).and("_id").lt(afterId)
+            );
+        }
+        // Fetch one extra to know if there is a next page
+        List<BlogPostSummary> posts = findSummaries(criteria, NEWEST_FIRST, limit + 1);
+        String next = null;
+        if(posts.size() > limit){
+            posts = posts.subList(0, limit);
+            BlogPostSummary last = posts.get(limit - 1);
+            next = new Cursor(last.getCreatedOn(), last.getId().toHexString()).encode();
+        }
+        return new CursorPage<>(posts, next);
+    }
+
+    /**
+     * Writes every post, deleted ones included, as one JSON document per line while reading them from a Mongo cursor.
+     * Only the current batch of the cursor and one post are held in memory, however many posts there are.
+     * @param comments Include each post's comment tree, read with one query per post
+     */
+    public void exportBlogPosts(OutputStream out, boolean comments) throws IOException {
+        Query query = new Query().with(Sort.by(Sort.Direction.ASC, "id"));
+        query.cursorBatchSize(exportBatchSize);
+        // Flushed every exportFlushEvery posts rather than after each one
+        ObjectWriter writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        // Jackson puts a space between root values by default, each line must be exactly one document
+        generator.setRootValueSeparator(null);
+        int written = 0;
+        try(var posts = mongoTemplate.stream(query, BlogPost.class)){
+            var iterator = posts.iterator();
+            while(iterator.hasNext()){
+                BlogPost blogPost = iterator.next();
+                if(comments) withComments(blogPost);
+                withPendingLikes(blogPost);
+                writer.writeValue(generator, comments ? blogPost.getBlogPostReturn() : blogPost.getBlogPostReturnWithoutComments());
+                generator.writeRaw('\n');
+                if(++written % exportFlushEvery == 0) generator.flush();
+            }
+        }finally {
+            generator.close();
+        }
+    }
+
+    /**
+     * Gets the newest blog posts that are not flagged as deleted.
+     * @param num Number of posts wanted, clamped to [1, MAX_PAGE_SIZE]
+     * @return Posts newest first
+     */
+    public List<BlogPost> getLatestBlogPosts(int num){
+        int limit = Math.max(1, Math.min(num, MAX_PAGE_SIZE));
+        Query query = new Query(Criteria.where("deleted").is(false));
+        query.with(NEWEST_FIRST);
+        query.limit(limit);
+        List<BlogPost> posts = mongoTemplate.find(query, BlogPost.class);
+        for(var blogPost : posts) withPendingLikes(withComments(blogPost));
         return posts;
     }
 
+    /**
+     * Same as {@link #getLatestBlogPosts(int)} but only reads the summary fields.
+     */
+    public List<BlogPostSummary> getLatestBlogPostSummaries(int num){
+        int limit = Math.max(1, Math.min(num, MAX_PAGE_SIZE));
+        return findSummaries(Criteria.where("deleted").is(false), NEWEST_FIRST, limit);
+    }
+
     public BlogPost getBlogPostWithId(ObjectId id){
         BlogPost blogPost = blogPostRepository.getBlogPostById(id);
-        return blogPost;
+        return withPendingLikes(withComments(blogPost));
     }
 
+    /**
+     * Gets a post with its comment tree through the {@link BlogPostCache}.
+     * @return A copy the caller is free to change or null if the post doesn't exist
+     */
     public BlogPost getBlogPostWithBlogId(String blogId){
-        BlogPost blogPost = blogPostRepository.getBlogPostByBlogId(blogId);
+        BlogPost cached = blogPostCache.get(blogId, id -> withComments(blogPostRepository.getBlogPostByBlogId(id)));
+        if(cached == null) return null;
+        return withPendingLikes(cached.copy());
+    }
+
+    // Attaches the comment tree, moving any comments still embedded in the post to the Comments collection first
+    private BlogPost withComments(BlogPost blogPost){
+        if(blogPost == null) return null;
+        blogPostCommentService.migrateLegacyComments(blogPost);
+        blogPost.setComments(blogPostCommentService.loadThread(blogPost.getBlogId()));
         return blogPost;
     }
 
-    public List<BlogPost> getAllBlogPostsWithTitleContaining(String titleSnip){
-        List<BlogPost> posts=blogPostRepository.findAll();
-        if(posts==null)return new ArrayList<BlogPost>();
-        posts.removeIf(post->!post.getTitle().toLowerCase().contains((CharSequence) titleSnip.toLowerCase()));
-        return posts;
+    // Likes that are toggled but not flushed yet, only ever applied to a post that isn't cached
+    BlogPost withPendingLikes(BlogPost blogPost){
+        if(blogPost == null || !likeBuffer.hasPending()) return blogPost;
+        blogPost.setLikes(likeBuffer.mergeLikes(LikeBuffer.Key.post(blogPost.getBlogId()), blogPost.getLikes()));
+        if(blogPost.getComments() == null) return blogPost;
+        Deque<BlogPostComment> stack = new ArrayDeque<>(blogPost.getComments());
+        while(!stack.isEmpty()){
+            var comment = stack.pop();
+            comment.setLikes(likeBuffer.mergeLikes(LikeBuffer.Key.comment(comment.getBlogId(), comment.getCommentId()), comment.getLikes()));
+            if(comment.getReplies() != null) comment.getReplies().forEach(stack::push);
+        }
+        return blogPost;
     }
 
-    public List<BlogPost> getAllBlogPostsMadeAfter(Date createdOn){
-        Query query = new Query();
-        query.addCriteria(Criteria.where("createdOn").lte(createdOn));
-        List<BlogPost> posts = mongoTemplate.find(query,BlogPost.class);
-        if(posts==null)posts=new ArrayList<BlogPost>();
-        return posts;
+    public List<BlogPostSummary> getAllBlogPostsWithTitleContaining(String titleSnip){
+        // Until the title index has been built fall back to a case-insensitive regex in Mongo
+        if(!titleTrigramIndex.isReady()){
+            return findSummaries(Criteria.where("title").regex(Pattern.quote(titleSnip),"i"), NEWEST_FIRST, 0);
+        }
+        var blogIds = titleTrigramIndex.search(titleSnip);
+        if(blogIds.isEmpty())return new ArrayList<BlogPostSummary>();
+        return findSummaries(Criteria.where("blogId").in(blogIds), NEWEST_FIRST, 0);
+    }
+
+    public SearchResults searchBlogPosts(String query, int page, int size){
+        int limit = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+        return fullTextIndex.search(query, Math.max(0, page), limit);
+    }
+
+    public List<BlogPostSummary> getAllBlogPostsMadeAfter(Date createdOn){
+        return findSummaries(Criteria.where("createdOn").lte(createdOn), null, 0);
+    }
+
+    /**
+     * Reads post summaries with a server side projection, the body is cut down to an excerpt and
+     * the like array is reduced to a count before anything is sent over the wire.
+     * @param criteria Filter or null for every post
+     * @param sort Sort or null for natural order
+     * @param limit Maximum number of summaries or 0 for no limit
+     */
+    private List<BlogPostSummary> findSummaries(Criteria criteria, Sort sort, int limit){
+        var summaries = mongoTemplate.aggregate(summaryAggregation(criteria, sort, limit), BlogPostSummary.class).getMappedResults();
+        for(var summary : summaries) withPendingLikes(summary);
+        return summaries;
+    }
+
+    static TypedAggregation<BlogPost> summaryAggregation(Criteria criteria, Sort sort, int limit){
+        List<AggregationOperation> operations = new ArrayList<>();
+        if(criteria != null) operations.add(Aggregation.match(criteria));
+        if(sort != null) operations.add(Aggregation.sort(sort));
+        if(limit > 0) operations.add(Aggregation.limit(limit));
+        operations.add(Aggregation.project("blogId", "title", "author", "createdOn", "lastUpdated", "deleted")
+                .and(StringOperators.valueOf(ConditionalOperators.ifNull("body").then("")).substringCP(0, EXCERPT_LENGTH)).as("excerpt")
+                .and(ArrayOperators.Size.lengthOfArray(ConditionalOperators.ifNull("likes").then(List.of()))).as("likeCount")
+                .and(ConditionalOperators.ifNull("topLevelCommentCount").then(0)).as("topLevelCommentCount"));
+        return Aggregation.newAggregation(BlogPost.class, operations);
+    }
+
+    BlogPostSummary withPendingLikes(BlogPostSummary summary){
+        if(likeBuffer.hasPending()) summary.setLikeCount(summary.getLikeCount() + (int) likeBuffer.pendingDelta(LikeBuffer.Key.post(summary.getBlogId())));
+        return summary;
     }
 
     public BlogPost addNewBlogPost(BlogPost blogPost){
+        blogPost.setLastActivity(new Date());
         BlogPost saved=mongoTemplate.save(blogPost);
+        evict(saved.getBlogId());
+        titleTrigramIndex.index(saved);
+        fullTextIndex.index(saved);
         return saved;
     }
 
+    /**
+     * Writes the editable fields of a post. Comments and likes are stored and updated separately and are not touched.
+     */
     public BlogPost updateBlogPost(BlogPost blogPost){
-        BlogPost saved = mongoTemplate.save(blogPost);
-        return saved;
+        Update update = new Update()
+                .set("title", blogPost.getTitle())
+                .set("body", blogPost.getBody())
+                .set("author", blogPost.getAuthor())
+                .set("lastUpdated", blogPost.getLastUpdated());
+        mongoTemplate.updateFirst(byBlogId(blogPost.getBlogId()), touch(update), BlogPost.class);
+        evict(blogPost.getBlogId());
+        titleTrigramIndex.index(blogPost);
+        fullTextIndex.index(blogPost);
+        return blogPost;
     }
 
     public BlogPost flagAsDeleteBlogPost(BlogPost blogPost){
         blogPost.setDeleted(true);
-        var saved =mongoTemplate.save(blogPost);
-        return saved;
-    }
-
-    public BlogPostComment flagAsDeleteBlogPostComment(BlogPostComment blogPostCommentToBeDeleted){
-        var blogPost = this.getBlogPostWithBlogId(blogPostCommentToBeDeleted.getBlogId());
-        var blogPostOpt = blogPost.findCommentById(blogPostCommentToBeDeleted.getCommentId());
-        if(blogPostOpt.isEmpty())return null;
-        var blogPostComment = blogPostOpt.get();
-        blogPostComment.setDeleted(true);
-        mongoTemplate.save(blogPost);
-        return blogPostComment;
+        mongoTemplate.updateFirst(byBlogId(blogPost.getBlogId()), touch(new Update().set("deleted", true)), BlogPost.class);
+        evict(blogPost.getBlogId());
+        titleTrigramIndex.index(blogPost);
+        fullTextIndex.index(blogPost);
+        return blogPost;
     }
 
     public BlogPost restoreBlogPost(BlogPost blogPost){
         blogPost.setDeleted(false);
-        return mongoTemplate.save(blogPost);
-    }
-
-    public BlogPostComment restoreBlogPostComment(BlogPostComment blogPostComment){
-        BlogPost blogPost = getBlogPostWithBlogId(blogPostComment.getBlogId());
-        var blogPostOpt = blogPost.findCommentById(blogPostComment.getCommentId());
-        if(blogPostOpt.isEmpty())return null;
-        blogPostOpt.get().setDeleted(false);
-        mongoTemplate.save(blogPost);
-        return blogPostOpt.get();
+        mongoTemplate.updateFirst(byBlogId(blogPost.getBlogId()), touch(new Update().set("deleted", false)), BlogPost.class);
+        evict(blogPost.getBlogId());
+        titleTrigramIndex.index(blogPost);
+        fullTextIndex.index(blogPost);
+        return blogPost;
     }
 
     public BlogPost removeBlogPostFromDB(BlogPost blogPost){
         var removed = mongoTemplate.remove(blogPost).getDeletedCount();
+        if(removed>0){
+            blogPostCommentService.removeAllCommentsOfPost(blogPost.getBlogId());
+            evict(blogPost.getBlogId());
+            titleTrigramIndex.remove(blogPost.getBlogId());
+            fullTextIndex.remove(blogPost.getBlogId());
+        }
         return removed>0?blogPost:null;
     }
 
-    public BlogPostComment removeBlogPostCommentFromDB(BlogPostComment blogPostComment){
-        // Post comment belongs to
-        BlogPost blogPost = getBlogPostWithBlogId(blogPostComment.getBlogId());
+    /**
+     * Adds a comment, or a reply when the comment has a parentCommentId, to a loaded post.
+     * @return The saved comment or null if the parent comment isn't part of the post
+     */
+    public BlogPostComment addCommentToBlogPost(BlogPost blogPost, BlogPostComment blogPostComment){
+        BlogPostComment parent = null;
+        if(blogPostComment.getParentCommentId() != null){
+            var parentOptional = blogPost.findCommentById(blogPostComment.getParentCommentId());
+            if(parentOptional.isEmpty()) return null;
+            parent = parentOptional.get();
+        }
+        var saved = blogPostCommentService.addComment(blogPostComment, parent);
+        // Keep the loaded tree in step with the database
+        blogPost.addComment(saved, parent);
+        evict(blogPost.getBlogId());
+        fullTextIndex.index(blogPost);
+        return saved;
+    }
+
+    /**
+     * Writes the editable fields of a comment of a loaded post.
+     */
+    public BlogPostComment updateBlogPostComment(BlogPost blogPost, BlogPostComment blogPostComment){
+        var saved = blogPostCommentService.saveComment(blogPostComment);
+        evict(blogPost.getBlogId());
+        fullTextIndex.index(blogPost);
+        return saved;
+    }
+
+    public BlogPostComment flagAsDeleteBlogPostComment(BlogPost blogPost, BlogPostComment blogPostCommentToBeDeleted){
+        var deleted = blogPostCommentService.setDeleted(blogPostCommentToBeDeleted, true);
+        evict(blogPost.getBlogId());
+        if(deleted != null) fullTextIndex.index(blogPost);
+        return deleted;
+    }
+
+    public BlogPostComment restoreBlogPostComment(BlogPost blogPost, BlogPostComment blogPostComment){
+        var restored = blogPostCommentService.setDeleted(blogPostComment, false);
+        evict(blogPost.getBlogId());
+        if(restored != null) fullTextIndex.index(blogPost);
+        return restored;
+    }
+
+    public BlogPostComment removeBlogPostCommentFromDB(BlogPost blogPost, BlogPostComment blogPostComment){
+        var removed = blogPostCommentService.removeComment(blogPostComment);
+        evict(blogPost.getBlogId());
+        if(removed != null){
+            blogPost.removeComment(removed.getCommentId());
+            fullTextIndex.index(blogPost);
+        }
+        return removed;
+    }
+
+    /**
+     * Likes a post for the user, or removes the like if they already liked it. Goes through the {@link LikeBuffer}
+     * unless likes.buffer.enabled is false, then it is written straight away with atomic updates on the likes array.
+     * @return true if liked, false if unliked or null if the post doesn't exist
+     */
+    public Boolean toggleBlogPostLike(String blogId, String userId){
+        if(bufferLikes) return likeBuffer.toggle(LikeBuffer.Key.post(blogId), userId);
+        var liked = toggleLike(Criteria.where("blogId").is(blogId), userId, BlogPost.class);
+        if(liked != null) touch(blogId);
+        evict(blogId);
+        return liked;
+    }
 
-        // Comment in blog Post
-        var foundCommentOptional = blogPost.findCommentById(blogPostComment.getCommentId());
-        if(foundCommentOptional.isEmpty())return null;
-        var foundComment = foundCommentOptional.get();
+    /**
+     * Same as {@link #toggleBlogPostLike(String, String)} for a comment of a post.
+     * @return true if liked, false if unliked or null if the comment doesn't exist
+     */
+    public Boolean toggleBlogPostCommentLike(String blogId, String commentId, String userId){
+        if(bufferLikes) return likeBuffer.toggle(LikeBuffer.Key.comment(blogId, commentId), userId);
+        var liked = toggleLike(Criteria.where("commentId").is(commentId).and("blogId").is(blogId), userId, BlogPostComment.class);
+        if(liked != null) touch(blogId);
+        evict(blogId);
+        return liked;
+    }
 
-        // If comment doesn't have a parent comment id it is comment to post
-        if(foundComment.getParentCommentId() == null){
-            boolean deleted=blogPost.getComments().removeIf(bpc -> bpc.getCommentId().equals(blogPostComment.getCommentId()));
-            mongoTemplate.save(blogPost);
-            return deleted?blogPostComment:null;
+    // $addToSet only if the user isn't in likes yet, otherwise $pull. Each step matches one state so a
+    // concurrent toggle makes both miss and the pair is retried against the new state.
+    private Boolean toggleLike(Criteria target, String userId, Class<?> type){
+        for(int attempt = 0; attempt < MAX_LIKE_ATTEMPTS; attempt++){
+            Query notLiked = new Query(Criteria.where("likes").ne(userId)).addCriteria(target);
+            if(mongoTemplate.updateFirst(notLiked, new Update().addToSet("likes", userId), type).getModifiedCount() > 0) return true;
+            Query liked = new Query(Criteria.where("likes").is(userId)).addCriteria(target);
+            if(mongoTemplate.updateFirst(liked, new Update().pull("likes", userId), type).getModifiedCount() > 0) return false;
+            if(!mongoTemplate.exists(new Query(target), type)) return null;
         }
+        return null;
+    }
+
+    /**
+     * Version of a post for conditional GETs, from the cache or a projection of the version fields only.
+     * @return The version or null if the post doesn't exist
+     */
+    public ContentVersion getBlogPostVersion(String blogId){
+        BlogPost blogPost = blogPostCache.getIfPresent(blogId);
+        if(blogPost == null){
+            Query query = byBlogId(blogId);
+            query.fields().include("blogId", "revision", "lastUpdated", "lastActivity", "createdOn");
+            blogPost = mongoTemplate.findOne(query, BlogPost.class);
+            if(blogPost == null) return null;
+        }
+        return versionOf(blogPost);
+    }
+
+    private ContentVersion versionOf(BlogPost blogPost){
+        String blogId = blogPost.getBlogId();
+        String tag = blogId + "-" + blogPost.getRevision() + "-" + millis(blogPost.getLastUpdated());
+        // Unflushed likes change the post without a new revision, only the ETag can tell
+        if(likeBuffer.hasPending(blogId)) return new ContentVersion(tag + "-l" + likeBuffer.changeCount(), null);
+        Date lastModified = blogPost.getLastActivity() != null ? blogPost.getLastActivity()
+                : latest(blogPost.getLastUpdated(), blogPost.getCreatedOn());
+        return new ContentVersion(tag, lastModified);
+    }
+
+    /**
+     * Version of every post listing: the post count and the newest lastActivity, which any change moves.
+     */
+    public ContentVersion getBlogPostsVersion(){
+        Query newest = new Query(Criteria.where("lastActivity").exists(true)).with(Sort.by(Sort.Direction.DESC, "lastActivity")).limit(1);
+        newest.fields().include("lastActivity");
+        BlogPost latest = mongoTemplate.findOne(newest, BlogPost.class);
+        Date lastModified = latest == null ? null : latest.getLastActivity();
+        String tag = "posts-" + mongoTemplate.estimatedCount(BlogPost.class) + "-" + millis(lastModified);
+        if(likeBuffer.hasPending()) return new ContentVersion(tag + "-l" + likeBuffer.changeCount(), null);
+        return new ContentVersion(tag, lastModified);
+    }
+
+    // Counts a change of the post, its comments or likes
+    static Update touch(Update update){
+        return update.inc("revision", 1).currentDate("lastActivity");
+    }
+
+    // Drops the cached post and its cached JSON after a change
+    private void evict(String blogId){
+        blogPostCache.invalidate(blogId);
+        postJsonCache.invalidate(blogId);
+    }
+
+    private void touch(String blogId){
+        mongoTemplate.updateFirst(byBlogId(blogId), touch(new Update()), BlogPost.class);
+    }
+
+    private static long millis(Date date){
+        return date == null ? 0 : date.getTime();
+    }
+
+    private static Date latest(Date first, Date second){
+        if(first == null) return second;
+        if(second == null) return first;
+        return first.after(second) ? first : second;
+    }
 
-        //Else it is a reply to another comment
-        var parentOptional = blogPost.findCommentById(foundComment.getParentCommentId());
-        if(parentOptional.isEmpty())return null;
-        var parent = parentOptional.get();
-        boolean deleted = parent.getReplies().removeIf(bpc -> bpc.getCommentId().equals(foundComment.getCommentId()));
-        mongoTemplate.save(blogPost);
-        return deleted?blogPostComment:null;
+    private static Query byBlogId(String blogId){
+        return new Query(Criteria.where("blogId").is(blogId));
     }
 }
@@ -0,0 +1,38 @@
+package com.stb.blog.services;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Read-through on an async Caffeine cache with the load run by the calling thread.
+ * A synchronous Caffeine load runs inside the map's lock, which pins a virtual thread for the whole Mongo read.
+ * Here only an empty future goes in under the lock, concurrent callers of the same key still wait for one load.
+ */
+final class CacheLoading {
+    private CacheLoading(){}
+
+    static <K, V> V get(AsyncCache<K, V> cache, K key, Function<K, V> loader){
+        CompletableFuture<V> loading = new CompletableFuture<>();
+        CompletableFuture<V> future = cache.get(key, (k, executor) -> loading);
+        if(future == loading){
+            try {
+                V value = loader.apply(key);
+                // A null value or a failure removes the entry again
+                loading.complete(value);
+                return value;
+            }catch (RuntimeException e){
+                loading.completeExceptionally(e);
+                throw e;
+            }
+        }
+        try {
+            return future.join();
+        }catch (CompletionException e){
+            if(e.getCause() instanceof RuntimeException cause) throw cause;
+            throw e;
+        }
+    }
+}
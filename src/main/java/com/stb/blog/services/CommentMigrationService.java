@@ -0,0 +1,69 @@
+package com.stb.blog.services;
+
+import com.stb.blog.models.BlogPost;
+import com.stb.blog.search.FullTextIndex;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+/**
+ * Moves comments still embedded in old posts into the Comments collection.
+ * Posts are also migrated one at a time when they are first read, this just gets through the rest.
+ */
+@Service
+public class CommentMigrationService {
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private BlogPostCommentService blogPostCommentService;
+
+    @Autowired
+    private BlogPostService blogPostService;
+
+    @Autowired
+    private FullTextIndex fullTextIndex;
+
+    @Value("${comments.migration.enabled:true}")
+    private boolean enabled;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateOnStartup(){
+        if(!enabled) return;
+        Thread migrator = new Thread(this::migrate, "comment-migration");
+        migrator.setDaemon(true);
+        migrator.start();
+    }
+
+    /**
+     * Streams every post that still has embedded comments and migrates it.
+     * @return Number of posts migrated
+     */
+    public int migrate(){
+        int migrated = 0;
+        try {
+            // Raw field name, the query mapper doesn't translate the array index path of legacyComments
+            Query query = new Query(Criteria.where("comments.0").exists(true));
+            query.fields().include("blogId").include("legacyComments");
+            try (var posts = mongoTemplate.stream(query, BlogPost.class)) {
+                for (var it = posts.iterator(); it.hasNext(); ) {
+                    BlogPost blogPost = it.next();
+                    // May have been migrated since it was streamed, then this does nothing
+                    blogPostCommentService.migrateLegacyComments(blogPost);
+                    // The search index only saw the post body until now
+                    fullTextIndex.index(blogPostService.getBlogPostWithBlogId(blogPost.getBlogId()));
+                    migrated++;
+                }
+            }
+            if(migrated > 0) System.out.println("Migrated comments of " + migrated + " posts");
+        }catch (RuntimeException e){
+            System.out.println("Comment migration failed: " + e.getMessage());
+        }
+        return migrated;
+    }
+}
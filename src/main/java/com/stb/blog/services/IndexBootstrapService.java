@@ -0,0 +1,139 @@
+package com.stb.blog.services;
+
+import com.stb.blog.models.BlogPost;
+import com.stb.blog.models.BlogPostComment;
+import com.stb.blog.models.User;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.MongoPersistentEntityIndexResolver;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Creates the indexes declared on the documents with @Indexed and @CompoundIndex, auto index creation being off,
+ * then reports the declared indexes still missing and the ones Mongo has that no query used lately.
+ * Runs in the background unless mongo.indexes.strict is set, then startup waits for it and fails on a missing index.
+ */
+@Service
+public class IndexBootstrapService {
+    private static final List<Class<?>> DOCUMENTS = List.of(BlogPost.class, User.class, BlogPostComment.class);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${mongo.indexes.ensure:true}")
+    private boolean ensure;
+
+    @Value("${mongo.indexes.strict:false}")
+    private boolean strict;
+
+    // $indexStats counts from the last restart of the Mongo node, younger counts say nothing yet
+    @Value("${mongo.indexes.unused-after-hours:24}")
+    private long unusedAfterHours;
+
+    // Types whose indexes were ensured in this run
+    private final Set<Class<?>> ensured = ConcurrentHashMap.newKeySet();
+    // Not synchronized, a virtual thread waiting on the index build would pin its carrier
+    private final ReentrantLock ensureLock = new ReentrantLock();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void bootstrapOnStartup(){
+        if(strict){
+            Report report = bootstrap();
+            if(!report.missing().isEmpty()) throw new IllegalStateException("Missing Mongo indexes: " + report.missing());
+            return;
+        }
+        Thread bootstrapper = new Thread(() -> {
+            try {
+                bootstrap();
+            }catch (RuntimeException e){
+                System.out.println("Index bootstrap failed: " + e.getMessage());
+            }
+        }, "index-bootstrap");
+        bootstrapper.setDaemon(true);
+        bootstrapper.start();
+    }
+
+    /**
+     * Creates the indexes declared on one document type, once per run. For writers that rely on a unique index
+     * before the startup bootstrap got to it.
+     */
+    public void ensureIndexes(Class<?> type){
+        if(!ensure || ensured.contains(type)) return;
+        ensureLock.lock();
+        try {
+            if(ensured.contains(type)) return;
+            String collection = mongoTemplate.getCollectionName(type);
+            for(IndexDefinition index : declared(type)){
+                try {
+                    mongoTemplate.indexOps(type).ensureIndex(index);
+                }catch (RuntimeException e){
+                    // E.g. duplicate values under a unique index, reported as missing by the bootstrap
+                    System.out.println("Could not create index " + describe(collection, index) + ": " + e.getMessage());
+                }
+            }
+            ensured.add(type);
+        }finally {
+            ensureLock.unlock();
+        }
+    }
+
+    /**
+     * Ensures every declared index and prints what is missing or unused.
+     */
+    public Report bootstrap(){
+        List<String> missing = new ArrayList<>();
+        List<String> unused = new ArrayList<>();
+        for(Class<?> type : DOCUMENTS){
+            String collection = mongoTemplate.getCollectionName(type);
+            List<IndexDefinition> declared = declared(type);
+            if(ensure) ensureIndexes(type);
+
+            // By name, every declared index has one and a partial index can share its keys with another
+            Set<String> names = new HashSet<>();
+            for(Document index : mongoTemplate.getCollection(collection).listIndexes()) names.add(index.getString("name"));
+            for(IndexDefinition index : declared){
+                if(!names.contains(index.getIndexOptions().getString("name"))) missing.add(describe(collection, index));
+            }
+
+            long usedSince = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(unusedAfterHours);
+            var stats = mongoTemplate.getCollection(collection).aggregate(List.of(new Document("$indexStats", new Document())));
+            for(Document stat : stats){
+                Document accesses = stat.get("accesses", Document.class);
+                if("_id_".equals(stat.getString("name")) || accesses == null) continue;
+                Date since = accesses.getDate("since");
+                long ops = ((Number) accesses.get("ops")).longValue();
+                if(ops == 0 && since != null && since.getTime() < usedSince) unused.add(collection + "." + stat.getString("name"));
+            }
+        }
+        if(!missing.isEmpty()) System.out.println("Missing Mongo indexes: " + missing);
+        if(!unused.isEmpty()) System.out.println("Mongo indexes unused for " + unusedAfterHours + "h: " + unused);
+        return new Report(missing, unused);
+    }
+
+    private List<IndexDefinition> declared(Class<?> type){
+        var resolver = new MongoPersistentEntityIndexResolver(mongoTemplate.getConverter().getMappingContext());
+        List<IndexDefinition> declared = new ArrayList<>();
+        resolver.resolveIndexFor(type).forEach(declared::add);
+        return declared;
+    }
+
+    private static String describe(String collection, IndexDefinition index){
+        return collection + "." + index.getIndexOptions().getString("name") + " " + index.getIndexKeys().toJson();
+    }
+
+    /**
+     * @param missing Declared indexes Mongo doesn't have, as collection.name keys
+     * @param unused Indexes without a single use since Mongo started counting, as collection.name
+     */
+    public record Report(List<String> missing, List<String> unused){}
+}
@@ -5,16 +5,19 @@ import com.stb.blog.JWT.JwtTokenReader;
 import com.stb.blog.exceptions.*;
 import com.stb.blog.models.TokenReturn;
 import com.stb.blog.models.User;
+import com.stb.blog.models.VerifiedToken;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 
-import java.util.ArrayList;
 import java.util.List;
 
 @Service
 public class JwtService {
 
     private final String BEARER="Bearer ";
+    private static final String VERIFIED_TOKEN = JwtService.class.getName() + ".verifiedToken";
     @Autowired
     JwtTokenGenerator jwtTokenGenerator;
     @Autowired
@@ -47,25 +50,33 @@ public class JwtService {
      * @return Is the token valid
      */
     public boolean validateAccessToken(String token){
-        boolean isValid=false;
+        return readAccessToken(token) != null;
+    }
+
+    public boolean validateRefreshToken(String token){
+        return readRefreshToken(token) != null;
+    }
+
+    /**
+     * Parses and verifies an access token.
+     * @return The verified token or null if it isn't valid
+     */
+    public VerifiedToken readAccessToken(String token){
         try{
-            isValid=jwtTokenReader.verifyAccessToken(token);
+            return jwtTokenReader.readAccessToken(token);
         }catch (JwtTokenException e){
             System.out.println(e);
-            return false;
+            return null;
         }
-        return isValid;
     }
 
-    public boolean validateRefreshToken(String token){
-        boolean isValid=false;
+    public VerifiedToken readRefreshToken(String token){
         try{
-            isValid=jwtTokenReader.verifyRefreshToken(token);
+            return jwtTokenReader.readRefreshToken(token);
         }catch (JwtTokenException e){
             System.out.println(e);
-            return false;
+            return null;
         }
-        return isValid;
     }
 
     public String getUsernameFromAccessToken(String token){
@@ -79,6 +90,14 @@ public class JwtService {
         return name;
     }
 
+    /**
+     * Username of a verified token, null for refresh tokens as they only grant new tokens.
+     */
+    public String getUsernameFromAccessToken(VerifiedToken token){
+        if(token == null || !token.isAccessToken()) return null;
+        return token.username();
+    }
+
     public String getUsernameFromRefreshToken(String token){
         String name=null;
         try {
@@ -91,27 +110,41 @@ public class JwtService {
     }
 
     public List<String> getRolesFromAccessToken(String token){
-        List<String> roles = new ArrayList<>();
         try {
-            String roleString = jwtTokenReader.getRolesFromAccessToken(token);
-            roleString=roleString.replace("[","").replace("]","");
-            var itter = roleString.split(",");
-            for(var role :itter){
-                roles.add(role);
-            }
+            return jwtTokenReader.getRolesFromAccessToken(token);
         } catch (JwtTokenException e){
             System.out.println(e.getMessage());
             return null;
         }
-        return roles;
+    }
+
+    /**
+     * Verifies a bearer token, as an access token or else as a refresh token. The outcome is kept on the
+     * current request so the filter and the controllers parse and verify the token only once.
+     * @param bearerToken The Authorization header
+     * @return The verified token
+     * @throws JwtTokenException If the header isn't a bearer token or the token isn't valid
+     */
+    public VerifiedToken getVerifiedToken(String bearerToken) throws JwtTokenException{
+        if(bearerToken == null || !bearerToken.startsWith(BEARER)) throw new JwtTokenException("Bearer token must start with \""+BEARER+"\"");
+        RequestAttributes request = RequestContextHolder.getRequestAttributes();
+        if(request != null && request.getAttribute(VERIFIED_TOKEN, RequestAttributes.SCOPE_REQUEST) instanceof Verification verification
+                && verification.bearerToken().equals(bearerToken)){
+            if(verification.token() == null) throw new JwtTokenException("JWT is not valid");
+            return verification.token();
+        }
+        String token = bearerToken.substring(BEARER.length());
+        VerifiedToken verified = readAccessToken(token);
+        if(verified == null) verified = readRefreshToken(token);
+        if(request != null) request.setAttribute(VERIFIED_TOKEN, new Verification(bearerToken, verified), RequestAttributes.SCOPE_REQUEST);
+        if(verified == null) throw new JwtTokenException("JWT is not valid");
+        return verified;
     }
 
     public String getJWTFromBearerToken(String bearerToken) throws JwtTokenException{
-        String token;
-        if(bearerToken.startsWith(BEARER)){
-                token = bearerToken.substring(BEARER.length());
-                if(!validateAccessToken(token) && !validateRefreshToken(token)) throw new JwtTokenException("JWT is not valid");
-        }else throw new JwtTokenException("Bearer token must start with \""+BEARER+"\"");
-        return token;
+        return getVerifiedToken(bearerToken).token();
     }
+
+    // Result of verifying a bearer token in this request, token is null when it wasn't valid
+    private record Verification(String bearerToken, VerifiedToken token){}
 }
@@ -0,0 +1,296 @@
+package com.stb.blog.services;
+
+import com.stb.blog.models.BlogPost;
+import com.stb.blog.models.BlogPostComment;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.BasicQuery;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind buffer for likes. A toggle only changes pending state in memory, the pending
+ * changes are written to Mongo in bulk on an interval and on shutdown. Reads merge the pending
+ * state so a user sees their like straight away.
+ */
+@Service
+public class LikeBuffer {
+    /**
+     * A post when commentId is null, otherwise a comment of the post.
+     */
+    public record Key(String blogId, String commentId) {
+        public static Key post(String blogId){
+            return new Key(blogId, null);
+        }
+
+        public static Key comment(String blogId, String commentId){
+            return new Key(blogId, commentId);
+        }
+    }
+
+    // Pending like state of one user, base is what Mongo holds and liked is what they want
+    private static final class Change {
+        final boolean base;
+        boolean liked;
+
+        Change(boolean base){
+            this.base = base;
+            this.liked = base;
+        }
+    }
+
+    // Pending changes of one post or comment. Closed once taken by a flush, toggles then start a new one.
+    private static final class Pending {
+        long delta;
+        final Map<String, Change> users = new HashMap<>();
+        boolean closed = false;
+    }
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private BlogPostCache blogPostCache;
+
+    @Autowired
+    private PostJsonCache postJsonCache;
+
+    private final Map<Key, Pending> pending = new ConcurrentHashMap<>();
+    // Taken by a running flush but not yet written, still counts as the state Mongo will have
+    private final Map<Key, Pending> inflight = new ConcurrentHashMap<>();
+    // blogId -> entries of the post and its comments in pending or inflight, so a read checks one key
+    private final Map<String, Integer> pendingPerPost = new ConcurrentHashMap<>();
+    // Not synchronized, a virtual thread waiting on the bulk write would pin its carrier
+    private final ReentrantLock flushLock = new ReentrantLock();
+    // Counts toggles, part of the ETag of anything showing unflushed likes
+    private final AtomicLong changes = new AtomicLong();
+
+    /**
+     * Flips the like of a user.
+     * @return true if liked, false if unliked or null if the post or comment doesn't exist
+     */
+    public Boolean toggle(Key key, String userId){
+        while(true){
+            Pending entry = pending.computeIfAbsent(key, this::newPending);
+            synchronized (entry){
+                if(entry.closed) continue;
+                Change change = entry.users.get(userId);
+                if(change != null){
+                    changes.incrementAndGet();
+                    return flip(entry, change);
+                }
+            }
+            // Nothing pending for the user, read the stored state outside the lock
+            Boolean base = storedState(key, userId);
+            if(base == null) return null;
+            synchronized (entry){
+                if(entry.closed) continue;
+                Change change = entry.users.computeIfAbsent(userId, u -> new Change(base));
+                changes.incrementAndGet();
+                return flip(entry, change);
+            }
+        }
+    }
+
+    /**
+     * Applies pending changes to a set of likes read from Mongo.
+     * @return The given set when nothing is pending, otherwise a new set
+     */
+    public Set<String> mergeLikes(Key key, Set<String> likes){
+        Pending flushing = inflight.get(key);
+        Pending waiting = pending.get(key);
+        if(flushing == null && waiting == null) return likes;
+        Set<String> merged = likes == null ? new HashSet<>() : new HashSet<>(likes);
+        apply(flushing, merged);
+        apply(waiting, merged);
+        return merged;
+    }
+
+    /**
+     * Change to a stored like count that hasn't been written yet.
+     */
+    public long pendingDelta(Key key){
+        return delta(inflight.get(key)) + delta(pending.get(key));
+    }
+
+    /**
+     * Whether any likes are waiting to be written, including those of a flush still running.
+     */
+    public boolean hasPending(){
+        return !pendingPerPost.isEmpty();
+    }
+
+    /**
+     * Whether likes of the post or any of its comments are waiting to be written.
+     */
+    public boolean hasPending(String blogId){
+        return blogId != null && pendingPerPost.containsKey(blogId);
+    }
+
+    public long changeCount(){
+        return changes.get();
+    }
+
+    /**
+     * Writes the pending changes in one unordered bulk per collection.
+     */
+    @Scheduled(fixedDelayString = "${likes.flush-interval-ms:1000}")
+    public void flush(){
+        flushLock.lock();
+        try {
+            flushPending();
+        }finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void flushPending(){
+        if(pending.isEmpty()) return;
+        Map<Key, Pending> taken = new HashMap<>();
+        for(var key : new ArrayList<>(pending.keySet())){
+            Pending entry = pending.remove(key);
+            if(entry == null) continue;
+            synchronized (entry){
+                entry.closed = true;
+            }
+            inflight.put(key, entry);
+            taken.put(key, entry);
+        }
+
+        BulkOperations posts = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, BlogPost.class);
+        BulkOperations comments = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, BlogPostComment.class);
+        int postWrites = 0, commentWrites = 0;
+        Set<String> changedPosts = new HashSet<>();
+        for(var taking : taken.entrySet()){
+            List<Object> liked = new ArrayList<>();
+            List<Object> unliked = new ArrayList<>();
+            taking.getValue().users.forEach((userId, change) -> {
+                if(change.liked == change.base) return;
+                (change.liked ? liked : unliked).add(userId);
+            });
+            Key key = taking.getKey();
+            boolean isPost = key.commentId() == null;
+            Query target = new Query(isPost
+                    ? Criteria.where("blogId").is(key.blogId())
+                    : Criteria.where("commentId").is(key.commentId()));
+            BulkOperations bulk = isPost ? posts : comments;
+            // $addToSet and $pull can't target the same field in one update
+            if(!liked.isEmpty()) bulk.updateOne(target, new Update().addToSet("likes").each(liked.toArray()));
+            if(!unliked.isEmpty()) bulk.updateOne(target, new Update().pullAll("likes", unliked.toArray()));
+            int writes = (liked.isEmpty() ? 0 : 1) + (unliked.isEmpty() ? 0 : 1);
+            if(isPost) postWrites += writes;
+            else commentWrites += writes;
+            if(writes > 0) changedPosts.add(key.blogId());
+        }
+        for(var blogId : changedPosts){
+            posts.updateOne(new Query(Criteria.where("blogId").is(blogId)), BlogPostService.touch(new Update()));
+            postWrites++;
+        }
+
+        try {
+            if(postWrites > 0) posts.execute();
+            if(commentWrites > 0) comments.execute();
+            // Before the entries leave inflight so a read never sees the old cached likes without them
+            taken.keySet().forEach(key -> {
+                blogPostCache.invalidate(key.blogId());
+                postJsonCache.invalidate(key.blogId());
+            });
+        }catch (RuntimeException e){
+            System.out.println("Like flush failed, will retry: " + e.getMessage());
+            taken.forEach(this::requeue);
+        }finally {
+            taken.keySet().forEach(key -> {
+                inflight.remove(key);
+                pendingPerPost.computeIfPresent(key.blogId(), (blogId, count) -> count == 1 ? null : count - 1);
+            });
+        }
+    }
+
+    @PreDestroy
+    public void close(){
+        flush();
+    }
+
+    private static boolean flip(Pending entry, Change change){
+        change.liked = !change.liked;
+        entry.delta += change.liked ? 1 : -1;
+        return change.liked;
+    }
+
+    // Counted from creation until the entry leaves inflight, an entry is only created in pending
+    private Pending newPending(Key key){
+        pendingPerPost.merge(key.blogId(), 1, Integer::sum);
+        return new Pending();
+    }
+
+    private static long delta(Pending entry){
+        if(entry == null) return 0;
+        synchronized (entry){
+            return entry.delta;
+        }
+    }
+
+    private static void apply(Pending entry, Set<String> likes){
+        if(entry == null) return;
+        synchronized (entry){
+            entry.users.forEach((userId, change) -> {
+                if(change.liked) likes.add(userId);
+                else likes.remove(userId);
+            });
+        }
+    }
+
+    // Puts back changes of a failed flush, later toggles of the same user win
+    private void requeue(Key key, Pending failed){
+        while(true){
+            Pending entry = pending.computeIfAbsent(key, this::newPending);
+            synchronized (entry){
+                if(entry.closed) continue;
+                failed.users.forEach((userId, change) -> {
+                    Change newer = entry.users.get(userId);
+                    // A newer change was based on the failed state, rebase it on what Mongo still holds
+                    Change rebased = new Change(change.base);
+                    rebased.liked = newer == null ? change.liked : newer.liked;
+                    entry.users.put(userId, rebased);
+                });
+                entry.delta = 0;
+                entry.users.values().forEach(change -> {
+                    if(change.liked != change.base) entry.delta += change.liked ? 1 : -1;
+                });
+                return;
+            }
+        }
+    }
+
+    // Whether the user is in the stored likes, only the matching element is projected. Null if missing.
+    private Boolean storedState(Key key, String userId){
+        Pending flushing = inflight.get(key);
+        if(flushing != null){
+            synchronized (flushing){
+                Change change = flushing.users.get(userId);
+                if(change != null) return change.liked;
+            }
+        }
+        boolean isPost = key.commentId() == null;
+        Document filter = isPost
+                ? new Document("blogId", key.blogId())
+                : new Document("commentId", key.commentId()).append("blogId", key.blogId());
+        Document fields = new Document("likes", new Document("$elemMatch", new Document("$eq", userId)));
+        String collection = mongoTemplate.getCollectionName(isPost ? BlogPost.class : BlogPostComment.class);
+        Document found = mongoTemplate.findOne(new BasicQuery(filter, fields), Document.class, collection);
+        if(found == null) return null;
+        List<?> likes = found.getList("likes", Object.class);
+        return likes != null && !likes.isEmpty();
+    }
+}
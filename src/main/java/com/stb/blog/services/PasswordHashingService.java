@@ -0,0 +1,144 @@
+package com.stb.blog.services;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs BCrypt off the servlet threads, on a pool sized to the cores with a bounded queue.
+ * When the queue is full the returned future fails with a {@link RejectedExecutionException}
+ * straight away, so a login storm is turned away instead of taking every request thread.
+ */
+@Service
+public class PasswordHashingService {
+
+    @Value("${security.bcrypt.strength:10}")
+    private int strength;
+
+    // 0 uses one thread per core
+    @Value("${security.hashing.threads:0}")
+    private int threads;
+
+    @Value("${security.hashing.queue-capacity:64}")
+    private int queueCapacity;
+
+    // Own encoder, the PasswordEncoder bean lives in SecurityConfig which needs UserService
+    private BCryptPasswordEncoder encoder;
+    private ThreadPoolExecutor executor;
+
+    private final LongAdder hashes = new LongAdder();
+    private final LongAdder hashNanos = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxHashNanos = new AtomicLong();
+    private final LongAdder rejected = new LongAdder();
+
+    @PostConstruct
+    public void init(){
+        encoder = new BCryptPasswordEncoder(strength);
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "password-hash-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    public void close(){
+        executor.shutdown();
+    }
+
+    public CompletableFuture<String> encode(String rawPassword){
+        return submit(() -> encoder.encode(rawPassword));
+    }
+
+    public CompletableFuture<Boolean> matches(String rawPassword, String encodedPassword){
+        return submit(() -> encoder.matches(rawPassword, encodedPassword));
+    }
+
+    /**
+     * True when the hash was made with a different cost factor than the configured one.
+     */
+    public boolean needsRehash(String encodedPassword){
+        try {
+            return encoder.upgradeEncoding(encodedPassword);
+        }catch (IllegalArgumentException e){
+            return false;
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> hash){
+        long queuedAt = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                long start = System.nanoTime();
+                waitNanos.add(start - queuedAt);
+                try {
+                    return hash.get();
+                }finally {
+                    long took = System.nanoTime() - start;
+                    hashes.increment();
+                    hashNanos.add(took);
+                    maxHashNanos.accumulateAndGet(took, Math::max);
+                }
+            }, executor);
+        }catch (RejectedExecutionException e){
+            rejected.increment();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public int poolSize(){
+        return executor.getCorePoolSize();
+    }
+
+    public int activeCount(){
+        return executor.getActiveCount();
+    }
+
+    public int queueDepth(){
+        return executor.getQueue().size();
+    }
+
+    public int queueCapacity(){
+        return queueCapacity;
+    }
+
+    public long completedCount(){
+        return hashes.sum();
+    }
+
+    public long rejectedCount(){
+        return rejected.sum();
+    }
+
+    public double averageHashMillis(){
+        long count = hashes.sum();
+        return count == 0 ? 0 : hashNanos.sum() / (count * 1_000_000.0);
+    }
+
+    public double averageWaitMillis(){
+        long count = hashes.sum();
+        return count == 0 ? 0 : waitNanos.sum() / (count * 1_000_000.0);
+    }
+
+    public double maxHashMillis(){
+        return maxHashNanos.get() / 1_000_000.0;
+    }
+
+    public int strength(){
+        return strength;
+    }
+}
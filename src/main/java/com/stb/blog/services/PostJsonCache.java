@@ -0,0 +1,242 @@
+package com.stb.blog.services;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serialized JSON of post responses, kept off the heap in direct buffers split into fixed size blocks.
+ * An entry is the post's blogId, its version tag and the blocks holding its bytes. Entries are evicted least
+ * recently used first, an entry being written to a response is leased and its blocks are only reused once
+ * the lease is closed. Counts against -XX:MaxDirectMemorySize, not the heap.
+ */
+@Component
+public class PostJsonCache {
+    // Largest slab, direct buffers are indexed by int
+    private static final int MAX_SLAB_BYTES = 1 << 28;
+
+    @Value("${cache.post-json.enabled:true}")
+    private boolean enabled;
+
+    @Value("${cache.post-json.max-bytes:67108864}")
+    private long maxBytes;
+
+    @Value("${cache.post-json.block-bytes:4096}")
+    private int blockBytes;
+
+    private ByteBuffer[] slabs;
+    private int blocksPerSlab;
+    private int blockCount;
+    private int maxEntryBlocks;
+    // Stack of free block numbers
+    private int[] freeBlocks;
+    private int freeCount;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private long hits, misses, stale, evictions, rejected, usedBytes;
+
+    private static final class Entry {
+        final String version;
+        final int[] blocks;
+        final int length;
+        int leases;
+        boolean removed;
+
+        Entry(String version, int[] blocks, int length){
+            this.version = version;
+            this.blocks = blocks;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Bytes of one entry, valid until closed.
+     */
+    public final class Lease implements AutoCloseable {
+        private final Entry entry;
+        private boolean closed;
+
+        private Lease(Entry entry){
+            this.entry = entry;
+        }
+
+        public int length(){
+            return entry.length;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            // The servlet stream only takes arrays, copied one block at a time
+            byte[] chunk = new byte[Math.min(blockBytes, entry.length)];
+            int remaining = entry.length;
+            for(int block : entry.blocks){
+                int length = Math.min(blockBytes, remaining);
+                slabs[block / blocksPerSlab].get((block % blocksPerSlab) * blockBytes, chunk, 0, length);
+                out.write(chunk, 0, length);
+                remaining -= length;
+            }
+        }
+
+        @Override
+        public void close(){
+            if(closed) return;
+            closed = true;
+            lock.lock();
+            try {
+                entry.leases--;
+                if(entry.removed && entry.leases == 0) release(entry);
+            }finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @PostConstruct
+    public void init(){
+        if(!enabled) return;
+        blocksPerSlab = MAX_SLAB_BYTES / blockBytes;
+        blockCount = (int) Math.min(Integer.MAX_VALUE, maxBytes / blockBytes);
+        int slabCount = (blockCount + blocksPerSlab - 1) / blocksPerSlab;
+        slabs = new ByteBuffer[slabCount];
+        for(int i = 0; i < slabCount; i++){
+            int blocks = Math.min(blocksPerSlab, blockCount - i * blocksPerSlab);
+            slabs[i] = ByteBuffer.allocateDirect(blocks * blockBytes);
+        }
+        // One post may take an eighth of the cache at most
+        maxEntryBlocks = Math.max(1, blockCount / 8);
+        freeBlocks = new int[blockCount];
+        for(int i = 0; i < blockCount; i++) freeBlocks[i] = blockCount - 1 - i;
+        freeCount = blockCount;
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * Leases the cached JSON of a post if it was stored for this version.
+     * @param comments Whether the response includes the comment tree
+     * @return The lease, to be closed once written, or null on a miss
+     */
+    public Lease get(String blogId, boolean comments, String version){
+        if(!enabled) return null;
+        lock.lock();
+        try {
+            String key = key(blogId, comments);
+            Entry entry = entries.get(key);
+            if(entry == null){
+                misses++;
+                return null;
+            }
+            if(!entry.version.equals(version)){
+                stale++;
+                misses++;
+                remove(key);
+                return null;
+            }
+            hits++;
+            entry.leases++;
+            return new Lease(entry);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores the JSON of a post, evicting the least recently used entries for room. Skipped when it is too large
+     * or everything that could make room is leased.
+     */
+    public void put(String blogId, boolean comments, String version, byte[] json){
+        if(!enabled) return;
+        int needed = Math.max(1, (json.length + blockBytes - 1) / blockBytes);
+        lock.lock();
+        try {
+            if(needed > maxEntryBlocks){
+                rejected++;
+                return;
+            }
+            String key = key(blogId, comments);
+            remove(key);
+            var eldest = entries.entrySet().iterator();
+            while(freeCount < needed && eldest.hasNext()){
+                var next = eldest.next();
+                eldest.remove();
+                next.getValue().removed = true;
+                if(next.getValue().leases == 0) release(next.getValue());
+                evictions++;
+            }
+            if(freeCount < needed){
+                rejected++;
+                return;
+            }
+            int[] blocks = new int[needed];
+            for(int i = 0; i < needed; i++){
+                int block = freeBlocks[--freeCount];
+                blocks[i] = block;
+                int offset = i * blockBytes;
+                slabs[block / blocksPerSlab].put((block % blocksPerSlab) * blockBytes, json, offset, Math.min(blockBytes, json.length - offset));
+            }
+            entries.put(key, new Entry(version, blocks, json.length));
+            usedBytes += json.length;
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops both representations of a post.
+     */
+    public void invalidate(String blogId){
+        if(!enabled || blogId == null) return;
+        lock.lock();
+        try {
+            remove(key(blogId, true));
+            remove(key(blogId, false));
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    public Metrics metrics(){
+        lock.lock();
+        try {
+            long allocated = (long) (blockCount - freeCount) * blockBytes;
+            double fragmentation = allocated == 0 ? 0 : (allocated - usedBytes) / (double) allocated;
+            return new Metrics(hits, misses, stale, evictions, rejected, entries.size(),
+                    usedBytes, allocated, (long) blockCount * blockBytes, freeCount, blockBytes, fragmentation);
+        }finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param fragmentation Share of the allocated blocks not holding JSON, the tail of each entry's last block
+     */
+    public record Metrics(long hits, long misses, long stale, long evictions, long rejected, int entries,
+                          long usedBytes, long allocatedBytes, long capacityBytes, int freeBlocks, int blockBytes,
+                          double fragmentation){}
+
+    // Caller holds the lock
+    private void remove(String key){
+        Entry entry = entries.remove(key);
+        if(entry == null) return;
+        entry.removed = true;
+        if(entry.leases == 0) release(entry);
+    }
+
+    // Caller holds the lock, the entry is out of the map and not leased
+    private void release(Entry entry){
+        for(int block : entry.blocks) freeBlocks[freeCount++] = block;
+        usedBytes -= entry.length;
+    }
+
+    private static String key(String blogId, boolean comments){
+        return comments ? blogId : blogId + "|without-comments";
+    }
+}
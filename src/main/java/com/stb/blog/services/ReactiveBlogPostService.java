@@ -0,0 +1,97 @@
+package com.stb.blog.services;
+
+import com.stb.blog.models.BlogPost;
+import com.stb.blog.models.BlogPostComment;
+import com.stb.blog.models.BlogPostSummary;
+import com.stb.blog.repositories.ReactiveBlogPostRepository;
+import com.stb.blog.search.TitleTrigramIndex;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.regex.Pattern;
+
+/**
+ * Reads of {@link BlogPostService} on the reactive Mongo driver. Nothing blocks a thread while waiting on Mongo
+ * and listings are emitted as the cursor is read, with demand passed on to the driver.
+ */
+@Service
+public class ReactiveBlogPostService {
+    // Listings stream, so they may be a lot longer than a page of the blocking API
+    public static final int MAX_STREAM_SIZE = 10_000;
+
+    @Autowired
+    private ReactiveBlogPostRepository reactiveBlogPostRepository;
+
+    @Autowired
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+
+    @Autowired
+    private BlogPostService blogPostService;
+
+    @Autowired
+    private BlogPostCache blogPostCache;
+
+    @Autowired
+    private TitleTrigramIndex titleTrigramIndex;
+
+    /**
+     * Gets a post with its comment tree, from the {@link BlogPostCache} when it's there.
+     * The cache isn't filled from here since that would need a blocking load.
+     * @return A copy of the post or empty if it doesn't exist
+     */
+    public Mono<BlogPost> getBlogPostWithBlogId(String blogId, boolean comments){
+        BlogPost cached = blogPostCache.getIfPresent(blogId);
+        if(cached != null) return Mono.just(blogPostService.withPendingLikes(cached.copy()));
+        Mono<BlogPost> blogPost = reactiveBlogPostRepository.getBlogPostByBlogId(blogId);
+        if(!comments) return blogPost.map(blogPostService::withPendingLikes);
+        return blogPost.flatMap(post -> hasLegacyComments(post)
+                // Not migrated yet, the blocking path migrates it first
+                ? Mono.fromCallable(() -> blogPostService.getBlogPostWithBlogId(blogId)).subscribeOn(Schedulers.boundedElastic())
+                : loadThread(blogId)
+                .collectList()
+                .map(thread -> {
+                    post.setComments(BlogPostCommentService.buildTree(thread));
+                    return blogPostService.withPendingLikes(post);
+                }));
+    }
+
+    private static boolean hasLegacyComments(BlogPost blogPost){
+        return blogPost.getLegacyComments() != null && !blogPost.getLegacyComments().isEmpty();
+    }
+
+    /**
+     * Newest posts that are not flagged as deleted, as summaries.
+     * @param num Number of posts wanted, clamped to [1, MAX_STREAM_SIZE]
+     */
+    public Flux<BlogPostSummary> getLatestBlogPostSummaries(int num){
+        int limit = Math.max(1, Math.min(num, MAX_STREAM_SIZE));
+        return findSummaries(Criteria.where("deleted").is(false), limit);
+    }
+
+    public Flux<BlogPostSummary> getAllBlogPostsWithTitleContaining(String titleSnip){
+        // Until the title index has been built fall back to a case-insensitive regex in Mongo
+        if(!titleTrigramIndex.isReady()){
+            return findSummaries(Criteria.where("title").regex(Pattern.quote(titleSnip),"i"), 0);
+        }
+        var blogIds = titleTrigramIndex.search(titleSnip);
+        if(blogIds.isEmpty()) return Flux.empty();
+        return findSummaries(Criteria.where("blogId").in(blogIds), 0);
+    }
+
+    private Flux<BlogPostComment> loadThread(String blogId){
+        Query query = new Query(Criteria.where("blogId").is(blogId)).with(BlogPostCommentService.OLDEST_FIRST_SORT);
+        return reactiveMongoTemplate.find(query, BlogPostComment.class);
+    }
+
+    private Flux<BlogPostSummary> findSummaries(Criteria criteria, int limit){
+        var aggregation = BlogPostService.summaryAggregation(criteria, BlogPostService.NEWEST_FIRST, limit);
+        return reactiveMongoTemplate.aggregate(aggregation, BlogPostSummary.class)
+                .map(blogPostService::withPendingLikes);
+    }
+}
@@ -0,0 +1,157 @@
+package com.stb.blog.services;
+
+import com.stb.blog.models.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tokens that must no longer be accepted, for authenticating from token claims without reading the user.
+ * Each user with a change keeps a "tokens issued before" epoch, banned, disabled and deleted users are blocked
+ * outright. A Bloom filter over the usernames answers the common case, a user with no change, without a map lookup.
+ * Kept in memory per instance and seeded from the banned and disabled users at startup.
+ */
+@Service
+public class RevocationRegistry {
+    private static final long BLOCKED = Long.MAX_VALUE;
+    // Longest lifetime of any token, with margin, older epochs can't affect a token that hasn't expired
+    private static final long MAX_TOKEN_LIFETIME = 1000L * 60 * 60 * 24 * 2;
+    private static final int BLOOM_BITS = 1 << 20;
+    private static final int BLOOM_HASHES = 4;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${security.jwt.claims-authorities:false}")
+    private boolean enabled;
+
+    // username -> tokens issued before this are revoked
+    private final Map<String, Long> epochs = new ConcurrentHashMap<>();
+    private volatile AtomicLongArray bloom = new AtomicLongArray(BLOOM_BITS / 64);
+    private volatile boolean ready = false;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void seedOnStartup(){
+        if(!enabled) return;
+        Thread seeder = new Thread(this::seed, "revocation-seed");
+        seeder.setDaemon(true);
+        seeder.start();
+    }
+
+    /**
+     * Blocks every banned or disabled user. Until it has run the registry isn't ready and tokens are checked against Mongo.
+     */
+    public void seed(){
+        try {
+            Query query = new Query(new Criteria().orOperator(
+                    Criteria.where("isBanned").is(true),
+                    Criteria.where("isDisabled").is(true)
+            ));
+            query.fields().include("username");
+            try (var users = mongoTemplate.stream(query, User.class)) {
+                users.forEach(user -> block(user.getUsername()));
+            }
+            ready = true;
+        }catch (RuntimeException e){
+            System.out.println("Revocation registry seed failed: " + e.getMessage());
+        }
+    }
+
+    public boolean isReady(){
+        return ready;
+    }
+
+    /**
+     * Revokes every token of the user issued until now, e.g. after a role was taken away.
+     */
+    public void revoke(String username){
+        if(username == null) return;
+        long now = System.currentTimeMillis();
+        epochs.merge(username, now, Math::max);
+        addToBloom(bloom, username);
+    }
+
+    /**
+     * Rejects every token of the user, including ones issued later, until {@link #unblock(String)}.
+     */
+    public void block(String username){
+        if(username == null) return;
+        epochs.put(username, BLOCKED);
+        addToBloom(bloom, username);
+    }
+
+    /**
+     * Lifts a block, tokens issued before now stay revoked.
+     */
+    public void unblock(String username){
+        if(username == null) return;
+        epochs.put(username, System.currentTimeMillis());
+        addToBloom(bloom, username);
+    }
+
+    public boolean isRevoked(String username, long issuedAtMillis){
+        if(username == null) return true;
+        if(!mightContain(bloom, username)) return false;
+        Long epoch = epochs.get(username);
+        return epoch != null && issuedAtMillis < epoch;
+    }
+
+    /**
+     * Drops epochs older than any token still alive and rebuilds the Bloom filter without them.
+     */
+    @Scheduled(fixedDelayString = "${security.revocation.prune-interval-ms:3600000}")
+    public void prune(){
+        long cutoff = System.currentTimeMillis() - MAX_TOKEN_LIFETIME;
+        epochs.values().removeIf(epoch -> epoch < cutoff);
+        AtomicLongArray rebuilt = new AtomicLongArray(BLOOM_BITS / 64);
+        epochs.keySet().forEach(username -> addToBloom(rebuilt, username));
+        bloom = rebuilt;
+        // Users revoked while rebuilding may have gone into the old filter only
+        epochs.keySet().forEach(username -> addToBloom(rebuilt, username));
+    }
+
+    private static void addToBloom(AtomicLongArray bits, String username){
+        long hash = hash(username);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for(int i = 0; i < BLOOM_HASHES; i++){
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % BLOOM_BITS;
+            long mask = 1L << (bit & 63);
+            bits.accumulateAndGet(bit >>> 6, mask, (current, add) -> current | add);
+        }
+    }
+
+    private static boolean mightContain(AtomicLongArray bits, String username){
+        long hash = hash(username);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for(int i = 0; i < BLOOM_HASHES; i++){
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % BLOOM_BITS;
+            if((bits.get(bit >>> 6) & (1L << (bit & 63))) == 0) return false;
+        }
+        return true;
+    }
+
+    // 64 bit mix of the username, split into the two hashes of the double hashing scheme
+    private static long hash(String username){
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < username.length(); i++){
+            h ^= username.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
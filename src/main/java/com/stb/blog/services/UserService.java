@@ -1,19 +1,32 @@
 package com.stb.blog.services;
 
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.stb.blog.models.User;
 import com.stb.blog.repositories.UserRepository;
+import jakarta.annotation.PostConstruct;
 import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 @Service
 public class UserService implements UserDetailsService {
@@ -21,27 +34,116 @@ public class UserService implements UserDetailsService {
     UserRepository userRepository;
     @Autowired
     private MongoTemplate mongoTemplate;
-    //@Autowired
-    PasswordEncoder passwordEncoder;
+    @Autowired
+    private PasswordHashingService passwordHashingService;
+    // The rehash write runs here, the hashing pool only hashes
+    @Autowired
+    @Qualifier(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME)
+    private Executor taskExecutor;
+
+    // Request attribute prefix for users already resolved in the current request
+    private static final String REQUEST_MEMO = UserService.class.getName() + ".user.";
+
+    @Value("${cache.users.ttl-seconds:30}")
+    private long userCacheTtlSeconds;
+
+    @Value("${cache.users.max-size:10000}")
+    private long userCacheMaxSize;
+
+    // username -> user, kept short lived since other instances can change users too
+    private AsyncCache<String, User> users;
 
+    @PostConstruct
+    public void init(){
+        users = Caffeine.newBuilder()
+                .maximumSize(userCacheMaxSize)
+                .expireAfterWrite(Duration.ofSeconds(userCacheTtlSeconds))
+                .recordStats()
+                .buildAsync();
+    }
+
+    /**
+     * Saves a user and writes it through to the user cache. Role, ban and disable changes all go through here.
+     */
     public User saveNewUser(User user){
         var saved = userRepository.save(user);
+        if(saved != null && saved.getUsername() != null){
+            users.synchronous().put(saved.getUsername(), saved.copy());
+            memo(saved.getUsername(), saved);
+        }
         return saved;
     }
 
-    public User findUserByUsernameAndPassword(String username,String password){
+    /**
+     * Checks the password on the hashing pool. Hashes made with an older cost factor are replaced in the background.
+     * @return The user, or null when the username or password is wrong. Fails with a RejectedExecutionException when the pool is saturated.
+     */
+    public CompletableFuture<User> findUserByUsernameAndPassword(String username,String password){
         var user = userRepository.findUserByUsername(username);
-        if(user == null) return null;
-        var decryptMatch= new BCryptPasswordEncoder().matches(password,user.getPassword());
-        if(user!=null && decryptMatch) return user;
-        return null;
+        if(user == null) return CompletableFuture.completedFuture(null);
+        return passwordHashingService.matches(password,user.getPassword()).thenApply(decryptMatch -> {
+            if(!decryptMatch) return null;
+            if(passwordHashingService.needsRehash(user.getPassword())) rehash(user, password);
+            return user;
+        });
+    }
+
+    // Best effort, the old hash keeps working if the pool is busy or the save fails
+    private void rehash(User user, String password){
+        passwordHashingService.encode(password).thenAcceptAsync(encoded -> {
+            mongoTemplate.updateFirst(
+                    new Query(Criteria.where("username").is(user.getUsername()).and("password").is(user.getPassword())),
+                    new Update().set("password", encoded),
+                    User.class);
+            users.synchronous().invalidate(user.getUsername());
+        }, taskExecutor).exceptionally(e -> {
+            System.out.println("Password rehash skipped for " + user.getUsername() + ": " + e.getMessage());
+            return null;
+        });
     }
 
+    /**
+     * Finds a user through the per-request memo and the user cache, so one request reads a user from Mongo at most once.
+     * @return A user the caller may change, only shared within the same request
+     */
     public User findUserByUsername(String username){
-        var user= userRepository.findUserByUsername(username);
+        if(username == null) return null;
+        RequestAttributes request = RequestContextHolder.getRequestAttributes();
+        if(request != null){
+            var memoized = (User) request.getAttribute(REQUEST_MEMO + username, RequestAttributes.SCOPE_REQUEST);
+            if(memoized != null) return memoized;
+        }
+        var cached = CacheLoading.get(users, username, userRepository::findUserByUsername);
+        if(cached == null) return null;
+        var user = cached.copy();
+        memo(username, user);
         return user;
     }
 
+    public void invalidateUser(String username){
+        if(username == null) return;
+        users.synchronous().invalidate(username);
+        RequestAttributes request = RequestContextHolder.getRequestAttributes();
+        if(request != null) request.removeAttribute(REQUEST_MEMO + username, RequestAttributes.SCOPE_REQUEST);
+    }
+
+    public CacheStats userCacheStats(){
+        return users.synchronous().stats();
+    }
+
+    public long userCacheSize(){
+        return users.synchronous().estimatedSize();
+    }
+
+    public long userCacheMaxSize(){
+        return userCacheMaxSize;
+    }
+
+    private void memo(String username, User user){
+        RequestAttributes request = RequestContextHolder.getRequestAttributes();
+        if(request != null) request.setAttribute(REQUEST_MEMO + username, user, RequestAttributes.SCOPE_REQUEST);
+    }
+
     public User findUserById(ObjectId id){
         var user = userRepository.findUserById(id);
         return user;
@@ -54,6 +156,7 @@ public class UserService implements UserDetailsService {
 
     public User deleteUser(User user){
         var del = mongoTemplate.remove(user).getDeletedCount();
+        invalidateUser(user.getUsername());
         if(del > 0){
             return user;
         }
@@ -63,7 +166,7 @@ public class UserService implements UserDetailsService {
 
     @Override
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
-        UserDetails user = userRepository.findUserByUsername(username);
+        UserDetails user = findUserByUsername(username);
         if(user == null) throw new UsernameNotFoundException("User [ " + username + " ] not found");
 
         return user;
@@ -0,0 +1,113 @@
+package com.stb.blog.models;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BlogPostCommentRendererTests {
+
+	@Test
+	void matchesRecursiveRendererOnRandomThreads() {
+		Random random = new Random(42);
+		for (int round = 0; round < 50; round++) {
+			List<BlogPostComment> roots = randomThread(random, 1 + random.nextInt(300));
+			var rendered = BlogPostCommentRenderer.render(roots);
+
+			List<BlogPostCommentReturn> expected = new ArrayList<>();
+			int total = roots.size();
+			for (var root : roots) {
+				expected.add(recursiveRender(root));
+				total += recursiveCount(root);
+			}
+			assertEquals(expected, rendered.comments());
+			assertEquals(roots.size(), rendered.topLevelCount());
+			assertEquals(total, rendered.totalCount());
+		}
+	}
+
+	@Test
+	void postReturnMatchesRecursiveCounts() {
+		var post = new BlogPost();
+		post.setComments(randomThread(new Random(7), 500));
+		var postReturn = post.getBlogPostReturn();
+		int total = post.getComments().size();
+		for (var comment : post.getComments()) total += recursiveCount(comment);
+		assertEquals(post.getComments().size(), postReturn.getTopLevelCommentCount());
+		assertEquals(total, postReturn.getTotalCommentCount());
+	}
+
+	@Test
+	void rendersDeepChainWithoutOverflow() {
+		int depth = 100_000;
+		BlogPostComment root = comment("c0", null);
+		BlogPostComment tip = root;
+		for (int i = 1; i < depth; i++) {
+			var reply = comment("c" + i, tip.getCommentId());
+			tip.getReplies().add(reply);
+			tip = reply;
+		}
+		var rendered = BlogPostCommentRenderer.render(List.of(root));
+		assertEquals(1, rendered.topLevelCount());
+		assertEquals(depth, rendered.totalCount());
+		assertEquals(depth - 1, rendered.comments().get(0).getTotalCommentCount());
+		assertEquals(1, rendered.comments().get(0).getTopLevelCommentCount());
+	}
+
+	// The renderer as it was before, a recursive reply count per node
+	private static BlogPostCommentReturn recursiveRender(BlogPostComment comment) {
+		List<BlogPostCommentReturn> commentReturns = new ArrayList<>();
+		for (var bpc : comment.getReplies()) commentReturns.add(recursiveRender(bpc));
+		return new BlogPostCommentReturn(
+				comment.getCommentId(),
+				comment.getBlogId(),
+				comment.getParentCommentId(),
+				comment.getLikes(),
+				comment.getTitle(),
+				comment.getAuthor(),
+				comment.getBody(),
+				comment.getCreatedOn(),
+				comment.getLastUpdated(),
+				comment.isDeleted(),
+				commentReturns,
+				comment.getReplies().size(),
+				recursiveCount(comment)
+		);
+	}
+
+	private static int recursiveCount(BlogPostComment comment) {
+		var count = comment.getReplies().size();
+		for (var reply : comment.getReplies()) count += recursiveCount(reply);
+		return count;
+	}
+
+	private static List<BlogPostComment> randomThread(Random random, int size) {
+		List<BlogPostComment> roots = new ArrayList<>();
+		List<BlogPostComment> all = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			BlogPostComment parent = all.isEmpty() || random.nextInt(4) == 0 ? null : all.get(random.nextInt(all.size()));
+			var comment = comment("c" + i, parent == null ? null : parent.getCommentId());
+			comment.setDeleted(random.nextInt(10) == 0);
+			comment.setLikes(random.nextBoolean() ? new HashSet<>(Set.of("u" + random.nextInt(5))) : new HashSet<>());
+			if (parent == null) roots.add(comment);
+			else parent.getReplies().add(comment);
+			all.add(comment);
+		}
+		return roots;
+	}
+
+	private static BlogPostComment comment(String commentId, String parentCommentId) {
+		var comment = new BlogPostComment();
+		comment.setCommentId(commentId);
+		comment.setParentCommentId(parentCommentId);
+		comment.setBlogId("post");
+		comment.setTitle("Re: " + commentId);
+		comment.setAuthor("author");
+		comment.setBody("body of " + commentId);
+		comment.setCreatedOn(new Date(1_000L * commentId.hashCode()));
+		comment.setLastUpdated(comment.getCreatedOn());
+		comment.setReplies(new ArrayList<>());
+		return comment;
+	}
+}